@@ -0,0 +1,70 @@
+package com.wispear.comm;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.GeneratedMessage;
+import com.wispear.comm.Messages.*;
+
+/*
+ * The lookups which dispatch a received message to its handler: the handler of its type, for requests and publications, and the pending
+ * request of its request id, for replies.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+	// Requests waiting for their reply, in the table of the event loop
+	@Param({ "16", "10000" })
+	public int outstanding_requests;
+
+	private HashMap<Descriptor, MessageHandler> message_handlers;
+	private GeneratedMessage message;
+	private IntObjectMap<Object> pending_requests;
+	private Object pending_request;
+	private int next_request_id;
+
+	@Setup
+	public void setUp()
+	{
+		MessageHandler handler = new MessageHandler() {
+			@Override
+			public void handleMessage(GeneratedMessage message, byte[] peer_id, int request_id) { }
+		};
+		message_handlers = new HashMap<Descriptor, MessageHandler>();
+		for (Descriptor descriptor : Messages.getDescriptor().getMessageTypes())
+		{
+			message_handlers.put(descriptor, handler);
+		}
+		message = Entity.newBuilder().setId(1).setName(ByteString.copyFromUtf8("entity")).build();
+
+		pending_requests = new IntObjectMap<Object>(64);
+		pending_request = new Object();
+		for (next_request_id = 1; next_request_id <= outstanding_requests; next_request_id++)
+		{
+			pending_requests.put(next_request_id, pending_request);
+		}
+	}
+
+	@Benchmark
+	public MessageHandler handlerLookup()
+	{
+		return message_handlers.get(message.getDescriptorForType());
+	}
+
+	// A request is sent, and the reply of the oldest outstanding one arrives, so the table keeps its size
+	@Benchmark
+	public Object pendingRequestLookup()
+	{
+		pending_requests.put(next_request_id, pending_request);
+		return pending_requests.remove(next_request_id++ - outstanding_requests);
+	}
+}
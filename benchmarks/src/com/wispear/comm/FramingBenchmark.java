@@ -0,0 +1,92 @@
+package com.wispear.comm;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.zeromq.ZMQ;
+
+import com.google.protobuf.ByteString;
+import com.wispear.comm.Messages.*;
+
+/*
+ * The framing of a message on the send and receive paths: serializing the payload, encoding and decoding the header frame, and passing
+ * both frames through a pair of inproc sockets - what the poller thread does per message, without the poll.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FramingBenchmark {
+
+	// Size of the name of the entity, in bytes
+	@Param({ "16", "1024" })
+	public int payload_size;
+
+	private TypeRegistry type_registry;
+	private FrameSerializer frame_serializer;
+	private Envelope envelope;
+	private Entity entity;
+	private int type_id;
+	private byte[] header;
+	private int request_id;
+
+	private ZMQ.Context context;
+	private ZMQ.Socket sender;
+	private ZMQ.Socket receiver;
+
+	@Setup
+	public void setUp()
+	{
+		type_registry = new TypeRegistry(Messages.getDescriptor());
+		frame_serializer = new FrameSerializer();
+		envelope = new Envelope();
+		entity = Entity.newBuilder().setId(1).setName(ByteString.copyFrom(new byte[payload_size])).build();
+		type_id = type_registry.getTypeId(Entity.getDescriptor());
+		header = Envelope.encode(type_id, 1, 5000, Envelope.SINGLE_MESSAGE);
+
+		context = ZMQ.context(1);
+		receiver = context.socket(ZMQ.PAIR);
+		receiver.bind("inproc://framing-benchmark");
+		sender = context.socket(ZMQ.PAIR);
+		sender.connect("inproc://framing-benchmark");
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		sender.close();
+		receiver.close();
+		context.term();
+	}
+
+	@Benchmark
+	public byte[] serialize()
+	{
+		return frame_serializer.serialize(entity);
+	}
+
+	@Benchmark
+	public byte[] encodeHeader()
+	{
+		return Envelope.encode(type_id, ++request_id, 5000, Envelope.SINGLE_MESSAGE);
+	}
+
+	@Benchmark
+	public boolean decodeHeader()
+	{
+		return envelope.decode(header);
+	}
+
+	// Send the header and payload frames of a request, and receive them on the other side
+	@Benchmark
+	public int sendRecv()
+	{
+		sender.send(Envelope.encode(type_id, ++request_id, 5000, Envelope.SINGLE_MESSAGE), ZMQ.SNDMORE);
+		sender.send(frame_serializer.serialize(entity));
+
+		envelope.decode(receiver.recv());
+		return envelope.correlation_id + receiver.recv().length;
+	}
+}
@@ -0,0 +1,403 @@
+package com.wispear.comm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.GeneratedMessage;
+import com.wispear.comm.Messages.*;
+
+/*
+ * An open loop load generator, for capacity planning: a client sends operations at a fixed target rate to a service in the same process,
+ * over tcp loopback, whether or not the earlier ones were answered - as independent users would. Each operation is a ReqEntity request,
+ * which the service answers with an Entity of the given size, or an AddEntity publication of that size, which the service subscribes to.
+ *
+ * The operations are scheduled up front, every 1/rate seconds, and the latency of each is measured from when it was scheduled to start until
+ * its reply (or publication) arrived. When the service falls behind, or the generator itself stalls, the operations which should have been
+ * sent meanwhile are sent late, and that delay counts in their latency - so the percentiles are corrected for coordinated omission, instead
+ * of hiding a stall behind the few operations which happened to wait for it. For the same reason a request which timed out or was rejected
+ * counts too, with the latency until it did - a timeout at least the request timeout - and the latency of the replied requests alone is
+ * reported separately.
+ * The sender threads split the schedule between them (thread k sends operations k, k + concurrency, ...), so one slow send doesn't delay
+ * the operations of the other threads.
+ *
+ * Usage: LoadGenerator [--rate operations per second, 10000] [--duration seconds measured, 30] [--warmup seconds, 5]
+ *                      [--concurrency sender threads, 4] [--size bytes of an entity, at least 8, 64] [--requests fraction of requests, 0.8]
+ *                      [--workers service worker loops, 0] [--timeout request timeout in milliseconds, 1000]
+ * Runs from the benchmarks module: java -cp target/benchmarks.jar com.wispear.comm.LoadGenerator --rate 20000
+ */
+public class LoadGenerator {
+
+	private final static String SERVICE_ADDR = "tcp://localhost:5592";
+	private final static String PUBLISHER_ADDR = "tcp://localhost:5593";
+
+	// A sender parks until this long before an operation is due, and spins from there, since parking may overshoot by tens of microseconds
+	private final static long SPIN_NANOS = 50000;
+
+	// Once the schedule ends, how long publications may still take to arrive
+	private final static long DRAIN_NANOS = 1000000000L;
+
+	private final static List<String> OPTIONS = Arrays.asList("rate", "duration", "warmup", "concurrency", "size", "requests", "workers", "timeout");
+	private final static String USAGE = "Usage: LoadGenerator [--rate operations per second, 10000] [--duration seconds measured, 30] "
+			+ "[--warmup seconds, 5] [--concurrency sender threads, 4] [--size bytes of an entity, at least 8, 64] "
+			+ "[--requests fraction of requests, 0.8] [--workers service worker loops, 0] [--timeout request timeout in milliseconds, 1000]";
+
+	private final double rate;
+	private final long duration_nanos;
+	private final long warmup_nanos;
+	private final int concurrency;
+	private final int size;
+	private final double request_fraction;
+	private final int workers;
+	private final long timeout;
+
+	private CommManager service;
+	private CommManager client;
+	private Thread service_thread;
+	private Entity reply_entity;
+	private byte[] padding;
+
+	// Only the operations scheduled after the warmup are measured. The subscriber of the service reads the start of the measurement on its
+	// own poller thread, which runs before it is set
+	private long start_nanos;
+	private volatile long measure_start_nanos;
+	private long end_nanos;
+
+	// Of all the requests, whether replied or not, and of the replied ones only
+	private final LatencyHistogram request_latency;
+	private final LatencyHistogram reply_latency;
+	private final LatencyHistogram publication_latency;
+	private final AtomicLong requests_sent;
+	private final AtomicLong requests_completed;
+	private final AtomicLong requests_timed_out;
+	private final AtomicLong requests_rejected;
+	private final AtomicLong requests_failed;
+	private final AtomicLong publications_sent;
+	private final AtomicLong publications_received;
+	// The latest a sender sent an operation, after it was due
+	private final AtomicLong max_send_lag;
+	private volatile boolean subscribed;
+
+	public static void main(String[] args) throws Exception {
+		// Every option is a known --name followed by its value, so a misspelled option doesn't quietly run with the defaults
+		HashMap<String, String> options = new HashMap<String, String>();
+		for (int i = 0; i < args.length; i += 2)
+		{
+			if (!args[i].startsWith("--") || !OPTIONS.contains(args[i].substring(2)))
+			{
+				exitWithUsage("Unknown option " + args[i]);
+			}
+			if (i + 1 >= args.length)
+			{
+				exitWithUsage("No value for option " + args[i]);
+			}
+			options.put(args[i].substring(2), args[i + 1]);
+		}
+
+		LoadGenerator load_generator = null;
+		try
+		{
+			load_generator = new LoadGenerator(Double.parseDouble(getOption(options, "rate", "10000")),
+					Long.parseLong(getOption(options, "duration", "30")), Long.parseLong(getOption(options, "warmup", "5")),
+					Integer.parseInt(getOption(options, "concurrency", "4")), Integer.parseInt(getOption(options, "size", "64")),
+					Double.parseDouble(getOption(options, "requests", "0.8")), Integer.parseInt(getOption(options, "workers", "0")),
+					Long.parseLong(getOption(options, "timeout", "1000")));
+		}
+		catch (IllegalArgumentException ex)
+		{
+			// Includes the NumberFormatException of a value which isn't a number
+			exitWithUsage(ex.getMessage());
+		}
+		load_generator.run();
+	}
+
+	private static void exitWithUsage(String error)
+	{
+		System.err.println(error);
+		System.err.println(USAGE);
+		System.exit(1);
+	}
+
+	LoadGenerator(double rate, long duration, long warmup, int concurrency, int size, double request_fraction, int workers, long timeout)
+	{
+		if ((rate <= 0) || (duration <= 0) || (warmup < 0) || (concurrency < 1) || (size < 8) || (request_fraction < 0) || (request_fraction > 1))
+		{
+			throw new IllegalArgumentException("Invalid options");
+		}
+
+		this.rate = rate;
+		duration_nanos = duration * 1000000000L;
+		warmup_nanos = warmup * 1000000000L;
+		this.concurrency = concurrency;
+		this.size = size;
+		this.request_fraction = request_fraction;
+		this.workers = workers;
+		this.timeout = timeout;
+
+		request_latency = new LatencyHistogram();
+		reply_latency = new LatencyHistogram();
+		publication_latency = new LatencyHistogram();
+		requests_sent = new AtomicLong();
+		requests_completed = new AtomicLong();
+		requests_timed_out = new AtomicLong();
+		requests_rejected = new AtomicLong();
+		requests_failed = new AtomicLong();
+		publications_sent = new AtomicLong();
+		publications_received = new AtomicLong();
+		max_send_lag = new AtomicLong();
+	}
+
+	private void run() throws Exception
+	{
+		startService();
+		client = new CommManager();
+		client.bindPublisher("tcp://*:5593");
+		Thread client_thread = new Thread(client);
+		client_thread.start();
+		waitForSubscription();
+
+		System.out.println(String.format("Target %,.0f operations/s for %d s (after %d s warmup), %d senders, %.0f%% requests, %d byte entities",
+				rate, duration_nanos / 1000000000L, warmup_nanos / 1000000000L, concurrency, request_fraction * 100, size));
+
+		start_nanos = System.nanoTime() + 10000000;
+		measure_start_nanos = start_nanos + warmup_nanos;
+		end_nanos = measure_start_nanos + duration_nanos;
+
+		ArrayList<Thread> senders = new ArrayList<Thread>();
+		for (int i = 0; i < concurrency; i++)
+		{
+			final int first_operation = i;
+			Thread sender = new Thread(new Runnable() {
+				@Override
+				public void run()
+				{
+					send(first_operation);
+				}
+			}, "load-sender-" + i);
+			senders.add(sender);
+			sender.start();
+		}
+		for (Thread sender : senders)
+		{
+			sender.join();
+		}
+
+		// The operations still in flight complete, or time out
+		long drain_end = System.nanoTime() + Math.max(DRAIN_NANOS, timeout * 1000000 + DRAIN_NANOS);
+		while ((System.nanoTime() < drain_end) && ((getRequestsDone() < requests_sent.get())
+				|| (publications_received.get() < publications_sent.get())))
+		{
+			Thread.sleep(10);
+		}
+
+		report();
+
+		client_thread.interrupt();
+		client_thread.join();
+		client.close();
+		service_thread.interrupt();
+		service_thread.join();
+		service.close();
+	}
+
+	private void startService() throws InterruptedException
+	{
+		service = new CommManager();
+		byte[] name = new byte[size];
+		reply_entity = Entity.newBuilder().setId(1).setName(ByteString.copyFrom(name)).build();
+		padding = new byte[size - 8];
+
+		service.setRequestHandler(ReqEntity.getDescriptor(),
+				new MessageHandler() {
+					@Override
+					public void handleMessage(GeneratedMessage message, byte[] peer_id, int request_id)
+					{
+						service.reply(reply_entity, peer_id, request_id);
+					}
+				});
+		service.subscribeTo(PUBLISHER_ADDR, AddEntity.getDescriptor(),
+				new MessageHandler() {
+					@Override
+					public void handleMessage(GeneratedMessage message, byte[] peer_id, int request_id)
+					{
+						subscribed = true;
+						// The publication carries when it was due, at the start of the entity name
+						long due_nanos = readLong(((AddEntity) message).getEntity().getName());
+						if (due_nanos >= measure_start_nanos)
+						{
+							publication_latency.record(System.nanoTime() - due_nanos);
+							publications_received.incrementAndGet();
+						}
+					}
+				});
+		if (workers > 0)
+		{
+			service.listenOn("tcp://*:5592", workers);
+		}
+		else
+		{
+			service.listenOn("tcp://*:5592");
+		}
+
+		service_thread = new Thread(service);
+		service_thread.start();
+	}
+
+	// Publications before the subscription reaches the publisher are dropped, so publish until one arrives (they aren't measured)
+	private void waitForSubscription() throws InterruptedException
+	{
+		measure_start_nanos = Long.MAX_VALUE;
+		while (!subscribed)
+		{
+			client.publish(createPublication(0, 0));
+			Thread.sleep(10);
+		}
+	}
+
+	// Sends the operations of one sender, each when it's due
+	private void send(int first_operation)
+	{
+		Random random = new Random(first_operation);
+		ReqEntity req_entity = ReqEntity.newBuilder().setId(first_operation).build();
+		for (long operation = first_operation; ; operation += concurrency)
+		{
+			final long due_nanos = start_nanos + (long) (operation * 1e9 / rate);
+			if (due_nanos >= end_nanos)
+			{
+				return;
+			}
+
+			long wait_nanos;
+			while ((wait_nanos = due_nanos - System.nanoTime()) > 0)
+			{
+				if (wait_nanos > SPIN_NANOS)
+				{
+					LockSupport.parkNanos(wait_nanos - SPIN_NANOS);
+				}
+			}
+
+			final boolean measured = (due_nanos >= measure_start_nanos);
+			if (measured)
+			{
+				long lag_nanos = System.nanoTime() - due_nanos;
+				long max_lag_nanos = max_send_lag.get();
+				while ((lag_nanos > max_lag_nanos) && !max_send_lag.compareAndSet(max_lag_nanos, lag_nanos))
+				{
+					max_lag_nanos = max_send_lag.get();
+				}
+			}
+
+			if (random.nextDouble() < request_fraction)
+			{
+				if (measured)
+				{
+					requests_sent.incrementAndGet();
+				}
+				client.<Entity>requestAsync(SERVICE_ADDR, req_entity, Entity.getDescriptor(), timeout).whenComplete(
+						new BiConsumer<Entity, Throwable>() {
+							@Override
+							public void accept(Entity reply, Throwable failure)
+							{
+								if (measured)
+								{
+									requestDone(due_nanos, failure);
+								}
+							}
+						});
+			}
+			else
+			{
+				if (measured)
+				{
+					publications_sent.incrementAndGet();
+				}
+				client.publish(createPublication(operation, due_nanos));
+			}
+		}
+	}
+
+	private void requestDone(long due_nanos, Throwable failure)
+	{
+		long latency_nanos = System.nanoTime() - due_nanos;
+		request_latency.record(latency_nanos);
+		if (failure == null)
+		{
+			reply_latency.record(latency_nanos);
+			requests_completed.incrementAndGet();
+		}
+		else if (failure instanceof TimeoutException)
+		{
+			requests_timed_out.incrementAndGet();
+		}
+		else if (failure instanceof RejectedExecutionException)
+		{
+			requests_rejected.incrementAndGet();
+		}
+		else
+		{
+			requests_failed.incrementAndGet();
+		}
+	}
+
+	private long getRequestsDone()
+	{
+		return requests_completed.get() + requests_timed_out.get() + requests_rejected.get() + requests_failed.get();
+	}
+
+	private AddEntity createPublication(long operation, long due_nanos)
+	{
+		byte[] due = new byte[8];
+		for (int i = 0; i < 8; i++)
+		{
+			due[i] = (byte) (due_nanos >>> (56 - 8 * i));
+		}
+		Entity entity = Entity.newBuilder().setId((int) operation).setName(ByteString.copyFrom(due).concat(ByteString.copyFrom(padding))).build();
+		return AddEntity.newBuilder().setEntity(entity).build();
+	}
+
+	private static long readLong(ByteString bytes)
+	{
+		long value = 0;
+		for (int i = 0; i < 8; i++)
+		{
+			value = (value << 8) | (bytes.byteAt(i) & 0xFF);
+		}
+		return value;
+	}
+
+	private void report()
+	{
+		double seconds = duration_nanos / 1e9;
+		long completed = requests_completed.get() + publications_received.get();
+		System.out.println(String.format("Achieved   %,.0f operations/s (%,d completed of %,d sent)", completed / seconds, completed,
+				requests_sent.get() + publications_sent.get()));
+		System.out.println(String.format("Requests   %,d sent, %,d replied, %,d timed out, %,d rejected as busy, %,d failed", requests_sent.get(),
+				requests_completed.get(), requests_timed_out.get(), requests_rejected.get(), requests_failed.get()));
+		printLatency("  latency", request_latency.snapshot());
+		printLatency("  replied", reply_latency.snapshot());
+		System.out.println(String.format("Publications %,d sent, %,d received", publications_sent.get(), publications_received.get()));
+		printLatency("  latency", publication_latency.snapshot());
+		System.out.println(String.format("Sender lag max %.1f ms%s", max_send_lag.get() / 1e6,
+				(max_send_lag.get() > 10000000) ? " - the generator fell behind its schedule, which counts in the latencies" : ""));
+	}
+
+	private static void printLatency(String label, HistogramSnapshot latency)
+	{
+		System.out.println(String.format("%s p50 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, max %.3f ms", label, latency.getP50() / 1000,
+				latency.getP99() / 1000, latency.getP999() / 1000, latency.getMax() / 1000));
+	}
+
+	private static String getOption(HashMap<String, String> options, String name, String default_value)
+	{
+		String value = options.get(name);
+		return (value != null) ? value : default_value;
+	}
+}
@@ -0,0 +1,80 @@
+package com.wispear.comm;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.GeneratedMessage;
+import com.wispear.comm.Messages.*;
+
+/*
+ * Finding the parser of a received message by its type, and parsing it: by the type id through the type registry, as received messages
+ * are parsed now, against the original getParserMethod - the parseFrom method of the generated class, found by the type name, cached
+ * in a map and invoked by reflection.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+
+	@Param({ "16", "1024" })
+	public int payload_size;
+
+	private TypeRegistry type_registry;
+	private int type_id;
+	private String type_name;
+	private byte[] message_bytes;
+	private HashMap<String, Method> type_parsers;
+
+	@Setup
+	public void setUp()
+	{
+		type_registry = new TypeRegistry(Messages.getDescriptor());
+		type_id = type_registry.getTypeId(Entity.getDescriptor());
+		type_name = Entity.getDescriptor().getName();
+		message_bytes = Entity.newBuilder().setId(1).setName(ByteString.copyFrom(new byte[payload_size])).build().toByteArray();
+		type_parsers = new HashMap<String, Method>();
+	}
+
+	@Benchmark
+	public TypeRegistry.Entry registryLookup()
+	{
+		return type_registry.getEntry(type_id);
+	}
+
+	@Benchmark
+	public GeneratedMessage registryParse() throws Exception
+	{
+		return type_registry.getEntry(type_id).parser.parseFrom(message_bytes);
+	}
+
+	@Benchmark
+	public Method reflectiveLookup() throws Exception
+	{
+		return getParserMethod(type_name);
+	}
+
+	@Benchmark
+	public GeneratedMessage reflectiveParse() throws Exception
+	{
+		return (GeneratedMessage) getParserMethod(type_name).invoke(null, message_bytes);
+	}
+
+	// As the CommManager found parsers before the type registry
+	private Method getParserMethod(String message_type) throws Exception
+	{
+		Method parser_method = type_parsers.get(message_type);
+		if (parser_method == null)
+		{
+			parser_method = Class.forName(String.format("%s.%s$%s", "com.wispear.comm", "Messages", message_type)).getMethod("parseFrom", byte[].class);
+			type_parsers.put(message_type, parser_method);
+		}
+		return parser_method;
+	}
+}
@@ -0,0 +1,132 @@
+package com.wispear.comm;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.GeneratedMessage;
+import com.wispear.comm.Messages.*;
+
+/*
+ * Publications end to end, through the public API: PUBLICATIONS entities are published, one by one or as a single batch (see publishBatch),
+ * and each operation ends once the subscriber handled all of them.
+ * Over inproc a single CommManager subscribes to its own publisher. Over tcp loopback the publisher and the subscriber are separate
+ * CommManagers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PubSubBenchmark {
+
+	// Fewer than the high water mark of the publisher, which drops what doesn't fit
+	private final static int PUBLICATIONS = 100;
+
+	@Param({ "inproc", "tcp" })
+	public String transport;
+
+	@Param({ "false", "true" })
+	public boolean batched;
+
+	private CommManager publisher;
+	private CommManager subscriber;
+	private Thread publisher_thread;
+	private Thread subscriber_thread;
+	private ArrayList<Entity> entities;
+	private AtomicLong received;
+	private long expected;
+
+	@Setup
+	public void setUp() throws InterruptedException
+	{
+		publisher = new CommManager();
+		if (transport.equals("inproc"))
+		{
+			subscriber = publisher;
+			publisher.bindPublisher("inproc://pub-sub-benchmark");
+			subscriber.subscribeTo("inproc://pub-sub-benchmark");
+		}
+		else
+		{
+			subscriber = new CommManager();
+			publisher.bindPublisher("tcp://*:5591");
+			subscriber.subscribeTo("tcp://localhost:5591");
+		}
+
+		received = new AtomicLong();
+		subscriber.subscribeTo(Entity.getDescriptor(),
+				new MessageHandler() {
+					@Override
+					public void handleMessage(GeneratedMessage message, byte[] peer_id, int request_id)
+					{
+						received.incrementAndGet();
+					}
+				});
+
+		entities = new ArrayList<Entity>();
+		for (int i = 0; i < PUBLICATIONS; i++)
+		{
+			entities.add(Entity.newBuilder().setId(i).setName(ByteString.copyFromUtf8("entity")).build());
+		}
+
+		publisher_thread = new Thread(publisher);
+		publisher_thread.start();
+		if (subscriber != publisher)
+		{
+			subscriber_thread = new Thread(subscriber);
+			subscriber_thread.start();
+		}
+
+		// Publications before the subscription reaches the publisher are dropped, so publish until one arrives
+		while (received.get() == 0)
+		{
+			publisher.publish(entities.get(0));
+			Thread.sleep(10);
+		}
+		Thread.sleep(100);
+		expected = received.get();
+	}
+
+	@TearDown
+	public void tearDown() throws InterruptedException
+	{
+		publisher_thread.interrupt();
+		publisher_thread.join();
+		publisher.close();
+		if (subscriber_thread != null)
+		{
+			subscriber_thread.interrupt();
+			subscriber_thread.join();
+			subscriber.close();
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PUBLICATIONS)
+	public void publish()
+	{
+		if (batched)
+		{
+			publisher.publishBatch(entities);
+		}
+		else
+		{
+			for (Entity entity : entities)
+			{
+				publisher.publish(entity);
+			}
+		}
+
+		expected += PUBLICATIONS;
+		while (received.get() < expected)
+		{
+			LockSupport.parkNanos(1000);
+		}
+	}
+}
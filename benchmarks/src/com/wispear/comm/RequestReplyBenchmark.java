@@ -0,0 +1,119 @@
+package com.wispear.comm;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.GeneratedMessage;
+import com.wispear.comm.Messages.*;
+
+/*
+ * Requests end to end, through the public API: the latency of a single request waiting for its reply, and the throughput of requests kept
+ * in flight ASYNC_BATCH at a time. The service answers each entity request with the entity.
+ * Over inproc a single CommManager requests itself, as inproc only connects sockets of the same ZMQ context. Over tcp loopback the
+ * client and the service are separate CommManagers. Each runs with the blocking poll, or with busy polling (see setBusyPolling) - which only
+ * lowers the latency with a free core for each polling thread.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestReplyBenchmark {
+
+	private final static int ASYNC_BATCH = 100;
+	private final static long REQUEST_TIMEOUT = 5000;
+
+	@Param({ "inproc", "tcp" })
+	public String transport;
+
+	@Param({ "blocking", "busy" })
+	public String polling;
+
+	private CommManager service;
+	private CommManager client;
+	private Thread service_thread;
+	private Thread client_thread;
+	private String addr;
+	private ReqEntity req_entity;
+
+	@Setup
+	public void setUp() throws InterruptedException
+	{
+		service = new CommManager();
+		if (transport.equals("inproc"))
+		{
+			client = service;
+			addr = "inproc://request-reply-benchmark";
+			service.listenOn(addr);
+		}
+		else
+		{
+			client = new CommManager();
+			addr = "tcp://localhost:5590";
+			service.listenOn("tcp://*:5590");
+		}
+		if (polling.equals("busy"))
+		{
+			service.setBusyPolling(10000, 100, 100000);
+			client.setBusyPolling(10000, 100, 100000);
+		}
+
+		service.setRequestHandler(ReqEntity.getDescriptor(),
+				new MessageHandler() {
+					@Override
+					public void handleMessage(GeneratedMessage message, byte[] peer_id, int request_id)
+					{
+						service.reply(Entity.newBuilder().setId(((ReqEntity) message).getId()).setName(ByteString.copyFromUtf8("entity")).build(),
+								peer_id, request_id);
+					}
+				});
+		req_entity = ReqEntity.newBuilder().setId(1).build();
+
+		service_thread = new Thread(service);
+		service_thread.start();
+		if (client != service)
+		{
+			client_thread = new Thread(client);
+			client_thread.start();
+		}
+		Thread.sleep(500);
+	}
+
+	@TearDown
+	public void tearDown() throws InterruptedException
+	{
+		service_thread.interrupt();
+		service_thread.join();
+		service.close();
+		if (client_thread != null)
+		{
+			client_thread.interrupt();
+			client_thread.join();
+			client.close();
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public Entity requestSync() throws Exception
+	{
+		return client.requestSync(addr, req_entity, Entity.getDescriptor(), REQUEST_TIMEOUT);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@OperationsPerInvocation(ASYNC_BATCH)
+	public void requestAsync() throws Exception
+	{
+		CompletableFuture<?>[] replies = new CompletableFuture<?>[ASYNC_BATCH];
+		for (int i = 0; i < ASYNC_BATCH; i++)
+		{
+			replies[i] = client.requestAsync(addr, req_entity, Entity.getDescriptor(), REQUEST_TIMEOUT);
+		}
+		CompletableFuture.allOf(replies).get();
+	}
+}
@@ -0,0 +1,102 @@
+package com.wispear.comm;
+
+import java.lang.management.ManagementFactory;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.GeneratedMessage;
+import com.wispear.comm.Messages.*;
+
+/*
+ * Measures the bytes allocated per send operation by the CommManager threads of the sending side - the thread calling the send method,
+ * and the poller thread which serializes and sends the message. Allocations of the ZMQ I/O threads aren't counted.
+ * Needs a JVM which supports measuring thread allocation (e.g. HotSpot).
+ * Published messages have no subscribers, so the publisher socket drops them once they were serialized and framed.
+ *
+ * Usage: SendAllocationBenchmark [publish operations] [request operations]
+ * Runs from the benchmarks module: java -cp target/benchmarks.jar com.wispear.comm.SendAllocationBenchmark
+ */
+public class SendAllocationBenchmark {
+
+	private final static int WARMUP_OPERATIONS = 20000;
+	private final static long REQUEST_TIMEOUT = 5000;
+
+	public static void main(String[] args) throws Exception {
+		int publish_operations = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+		int request_operations = (args.length > 1) ? Integer.parseInt(args[1]) : 5000;
+
+		final CommManager service = new CommManager();
+		final CommManager client = new CommManager();
+
+		// The service answers each entity request with the entity
+		service.listenOn("tcp://*:5580");
+		service.setRequestHandler(ReqEntity.getDescriptor(),
+				new MessageHandler() {
+					public void handleMessage(GeneratedMessage message, byte[] peer_id, int request_id)
+					{
+						ReqEntity req_entity_message = (ReqEntity) message;
+						service.reply(Entity.newBuilder().setId(req_entity_message.getId()).setName(ByteString.copyFromUtf8("entity")).build(),
+								peer_id, request_id);
+					}
+				});
+
+		client.bindPublisher("tcp://*:5581");
+
+		Thread service_thread = new Thread(service);
+		Thread client_thread = new Thread(client);
+		service_thread.start();
+		client_thread.start();
+		Thread.sleep(500);
+
+		Entity entity = Entity.newBuilder().setId(1).setName(ByteString.copyFromUtf8("entity")).build();
+		ReqEntity req_entity = ReqEntity.newBuilder().setId(1).build();
+
+		// Publishing from this thread goes through the mailbox of the poller thread
+		publish(client, entity, req_entity, WARMUP_OPERATIONS);
+		long allocated = getAllocatedBytes(client_thread);
+		publish(client, entity, req_entity, publish_operations);
+		report("publish", getAllocatedBytes(client_thread) - allocated, publish_operations);
+
+		// Request and wait for the reply, which includes receiving it on the poller thread
+		request(client, req_entity, WARMUP_OPERATIONS / 20);
+		allocated = getAllocatedBytes(client_thread);
+		request(client, req_entity, request_operations);
+		report("requestSync", getAllocatedBytes(client_thread) - allocated, request_operations);
+
+		service_thread.interrupt();
+		client_thread.interrupt();
+		service_thread.join();
+		client_thread.join();
+		service.close();
+		client.close();
+	}
+
+	private static void publish(CommManager client, Entity entity, ReqEntity req_entity, int operations) throws Exception
+	{
+		for (int i = 0; i < operations; i++)
+		{
+			client.publish(entity);
+		}
+		// The mailbox is first in, first out, so once the reply arrives all of the messages were sent
+		client.requestSync("tcp://localhost:5580", req_entity, Entity.getDescriptor(), REQUEST_TIMEOUT);
+	}
+
+	private static void request(CommManager client, ReqEntity req_entity, int operations) throws Exception
+	{
+		for (int i = 0; i < operations; i++)
+		{
+			client.requestSync("tcp://localhost:5580", req_entity, Entity.getDescriptor(), REQUEST_TIMEOUT);
+		}
+	}
+
+	// Allocated by this thread and by the poller thread of the client
+	private static long getAllocatedBytes(Thread client_thread)
+	{
+		com.sun.management.ThreadMXBean thread_bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		return thread_bean.getThreadAllocatedBytes(Thread.currentThread().getId()) + thread_bean.getThreadAllocatedBytes(client_thread.getId());
+	}
+
+	private static void report(String operation, long allocated, int operations)
+	{
+		System.out.println(String.format("%-12s %,d operations, %,d bytes allocated per operation", operation, operations, allocated / operations));
+	}
+}
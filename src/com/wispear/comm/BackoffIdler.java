@@ -0,0 +1,72 @@
+package com.wispear.comm;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * What an event loop does when a non-blocking poll found nothing, for busy polling (see CommManager.setBusyPolling): first it spins,
+ * polling again right away, then it yields its core to other threads between polls, and then it parks for growing periods, up to
+ * max_park_nanos. Any message resets it to spinning. A loop which just got a message is the likeliest to get the next one soon, so it
+ * reacts within microseconds then, and an idle loop backs off to costing next to no CPU.
+ * The blocking poll wakes up as soon as a message arrives, but going to sleep and waking up in the kernel costs tens of microseconds.
+ * Not thread safe - each event loop has its own.
+ */
+class BackoffIdler {
+
+	private final static long MIN_PARK_NANOS = 1000;
+
+	private final int max_spins;
+	private final int max_yields;
+	private final long max_park_nanos;
+
+	private int idle_polls;
+	private long park_nanos;
+
+	/**
+	 * @param max_spins - Empty polls repeated right away
+	 * @param max_yields - Empty polls after yielding, once done spinning
+	 * @param max_park_nanos - Longest park, once done yielding. Messages wait up to this long for an idle loop
+	 */
+	BackoffIdler(int max_spins, int max_yields, long max_park_nanos)
+	{
+		if ((max_spins < 0) || (max_yields < 0) || (max_park_nanos < MIN_PARK_NANOS))
+		{
+			throw new IllegalArgumentException("Invalid backoff " + max_spins + " spins, " + max_yields + " yields, " + max_park_nanos + " ns park");
+		}
+
+		this.max_spins = max_spins;
+		this.max_yields = max_yields;
+		this.max_park_nanos = max_park_nanos;
+		reset();
+	}
+
+	/**
+	 * The poll found a message
+	 */
+	void reset()
+	{
+		idle_polls = 0;
+		park_nanos = MIN_PARK_NANOS;
+	}
+
+	/**
+	 * The poll found nothing. Returns when it's time to poll again
+	 */
+	void idle()
+	{
+		if (idle_polls < max_spins)
+		{
+			idle_polls++;
+		}
+		else if (idle_polls < max_spins + max_yields)
+		{
+			idle_polls++;
+			Thread.yield();
+		}
+		else
+		{
+			// A loop parked for long may be woken up early, by an unpark from a thread posting to its mailbox
+			LockSupport.parkNanos(park_nanos);
+			park_nanos = Math.min(max_park_nanos, park_nanos * 2);
+		}
+	}
+}
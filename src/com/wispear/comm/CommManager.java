@@ -1,14 +1,29 @@
 package com.wispear.comm;
-import java.lang.reflect.*;
-import java.nio.ByteBuffer;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.*;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import org.zeromq.ZMQ;
 
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.Descriptors.*;
 import com.google.protobuf.GeneratedMessage;
 import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Parser;
 
 
 /**
@@ -18,274 +33,1956 @@ import com.google.protobuf.InvalidProtocolBufferException;
  * from services, a router to receive requests (which require a reply), and a variable amount of dealers to perform requests (which will be answered
  * with a reply).
  * All of the incoming communication is monitored by a ZMQ poller, which distributes it to the appropriate socket, and runs the correct callback function
- * (implementation of the MessageHandler interface).
+ * (implementation of the MessageHandler interface). Callbacks run on the poller thread, unless their message type is bound to another executor.
  * On the outgoing side, the CommManager provides 3 different sending operations, for different scenarios: publish, request and reply.
+ * ZMQ sockets are not thread safe, so only the poller thread uses them. The sending operations may be called from any thread - messages sent
+ * from other threads are queued, and the poller thread is woken up to send them.
+ * Requests may also go to a service group - replicas of a service behind one name, balanced by their latency (see setServiceGroup).
+ * A client talking to many services can spread its dealers over several event loops - each a poller thread of its own, with its own
+ * requests in flight. The publisher, subscriber and router always belong to the main event loop, which runs on the thread calling run().
+ * A service can also handle its requests on several worker event loops (see listenOn with workers). The main event loop then only passes
+ * the requests from the router to the workers, and their replies back.
+ * With fair scheduling the main event loop queues the requests per peer, so a peer flooding requests can't starve the others
+ * (see setFairPeerScheduling).
+ * Counts, bytes and latencies of the messages are recorded in the CommMetrics (see getMetrics), which may also be exported through JMX.
  * 
  * TODO:
- * 1. Add proper exceptions, and handle IO and reflection exceptions correctly.
+ * 1. Add proper exceptions, and handle IO and parsing exceptions correctly.
  */
 public class CommManager implements Runnable {
-	// This is currently the only coupling between the protocol buffer definition and the messaging library
-	// The values of this constant must identical to the name of the classname where all (protobuf) messages are defined
-	private final static String MESSAGES_CLASSNAME = "Messages";
-	
-	// For each request, this is the amount of bytes which are used to identify it. This value will pass on the wire twice (request and reply), so
-	// there is a trade-off between communication efficiency and the probability of collision for simulatenous requests.
-	// 2 bytes seems like it would be enough (i.e., a single service isn't likely to have 10K simulatenous equivelent requests), but to make sure and for
-	// better expansion potential I have set the value to 4. If we find out problems with out performance, we can check how tweaking this value effects it.
-	private final static int REQUEST_ID_LENGTH = 4;
-	private int next_request_id;
-	private Object request_id_lock_object;
-	
 	private ZMQ.Context context;
 	private ZMQ.Socket publisher;
 	private ZMQ.Socket subscriber;
 	private ZMQ.Socket router;
-	private HashMap<String, ZMQ.Socket> dealers;
-	private ZMQ.Poller polled_items;
 	
+	// With workers, the main event loop proxies between the router and this inproc dealer, which deals the requests to the worker event loops.
+	// Each worker receives requests, and sends their replies, on a dealer socket of its own connected to it
+	private ZMQ.Socket worker_backend;
+	private EventLoop[] worker_loops;
+	
+	// Dealers are sharded over the event loops by the hash of their address. The main event loop also owns the publisher, subscriber and router
+	private EventLoop[] event_loops;
+	private EventLoop main_loop;
 	
 	// Each message type the CommManager receives should have a MessageHandler set
 	private HashMap<Descriptor, MessageHandler> subscriber_message_handlers;
 	private HashMap<Descriptor, MessageHandler> router_message_handlers;
 	
-	// This hash is more complicated:
-	// There can be multiple socket dealers
-	// Each can have a multiple amount of active requests
-	// Each has its own set of possible possible reply messages and their corresponding handler
-	// In case a request has already been replied (important for handling timeouts), then dealers_message_handlers[socket][request_id] = null
-	private HashMap<ZMQ.Socket, HashMap<Integer, HashMap<Descriptor, MessageHandler>>> dealers_message_handlers;
+	// The handler for a message type runs on the executor bound to it, and on the default executor otherwise.
+	// The default is inline, i.e. on the poller thread itself.
+	private HashMap<Descriptor, Executor> handler_executors;
+	private Executor default_handler_executor;
+	
+	// When set, inbound requests and subscriptions of types without their own executor each run on a new virtual thread
+	private volatile ExecutorService virtual_thread_executor;
+	
+	// For types dispatched on a StripedExecutor, the key which orders their handling (messages of the same key are handled in order)
+	private HashMap<Descriptor, MessageKeyExtractor> handler_key_extractors;
+	
+	// ZMQ sockets are not thread safe, so only the poller thread ever uses them. Requests, replies and publications made on other threads
+	// are put in the outbound mailbox (a lock-free queue) and sent by the poller thread. A producer which finds the poller not yet signalled
+	// wakes it up through an inproc socket pair, so it doesn't wait for the poll timeout. At most one signal is in flight per drain of
+	// the mailbox, so the lock on the signalling socket is practically never contended.
+	// Outbound messages are their own mailbox nodes, so posting one allocates nothing more.
+	private static class OutboundMessage extends MpscQueue.Node<OutboundMessage>
+	{
+		private static final long serialVersionUID = 1L;
+		
+		protected final static int REQUEST = 0;
+		protected final static int REPLY = 1;
+		protected final static int PUBLISH = 2;
+		protected final static int PUBLISH_BATCH = 3;
+		protected final static int CANCEL = 4;
+		
+		protected int kind;
+		protected GeneratedMessage message;
+		protected List<? extends GeneratedMessage> batch;
+		protected String addr;
+		protected ServiceGroup.Replica replica;
+		protected PendingRequest pending_request;
+		protected long deadline;
+		protected byte[] peer_id;
+		protected int request_id;
+		
+		protected OutboundMessage(int kind, GeneratedMessage message)
+		{
+			this.kind = kind;
+			this.message = message;
+		}
+	}
+	private final static AtomicInteger next_instance_id = new AtomicInteger();
+	private final static byte[] WAKEUP_SIGNAL = new byte[0];
+	private final static byte[] BUSY_PAYLOAD = new byte[0];
+	
+	// Most requests the main event loop moves from the router to the peer queues, and from the queues to the handling loops, per iteration
+	private final static int SCHEDULING_BATCH = 256;
 	
-	private class RequestTimeoutMark implements Comparable<RequestTimeoutMark>
+	// Each outstanding request which expects a reply has a PendingRequest, found by its request id in the pending_requests of its event loop
+	// (request ids are unique across all dealers of the loop). The entry is removed when the reply arrives or when the request times out.
+	// Most requests have a single possible reply type, so its handler is kept directly in the entry. Only requests with several possible
+	// reply types keep a map of handlers. Requests made by requestAsync have a future instead of a handler, completed by the poller thread.
+	// Requests with a timeout are also kept in a timing wheel, which the poller advances with the time cached on each iteration.
+	// Both are only used by the thread of the event loop
+	private final static long TIMEOUT_TICK = 10;
+	private final static int TIMEOUT_WHEEL_SIZE = 1024;
+	private class PendingRequest extends TimingWheel.Timeout
 	{
-		protected long timeout;
 		protected int request_id;
+		protected Descriptor reply_descriptor;
+		protected MessageHandler reply_handler;
+		protected HashMap<Descriptor, MessageHandler> reply_handlers;
+		protected CompletableFuture<GeneratedMessage> reply_future;
+		protected GeneratedMessage request;
+		protected RequestTimeoutHandler timeout_handler;
+		protected EventLoop event_loop;
+		// The dealer the request went out on, whose outstanding requests it counts in until the reply arrives or it times out
+		protected DealerPool dealer_pool;
+		protected int dealer_index;
+		// For requests to a service group, the replica chosen and the send time, for its latency estimate
+		protected ServiceGroup.Replica replica;
+		protected long sent_nanos;
+		
+		protected PendingRequest(Descriptor reply_descriptor, MessageHandler reply_handler, HashMap<Descriptor, MessageHandler> reply_handlers,
+				RequestTimeoutHandler timeout_handler)
+		{
+			this.reply_descriptor = reply_descriptor;
+			this.reply_handler = reply_handler;
+			this.reply_handlers = reply_handlers;
+			this.timeout_handler = timeout_handler;
+		}
+		
+		protected PendingRequest(Descriptor reply_descriptor)
+		{
+			this.reply_descriptor = reply_descriptor;
+			this.reply_future = new ReplyFuture(this);
+		}
+		
+		protected MessageHandler getReplyHandler(Descriptor message_type)
+		{
+			if (reply_handlers != null)
+			{
+				return reply_handlers.get(message_type);
+			}
+			
+			return (message_type == reply_descriptor) ? reply_handler : null;
+		}
+		
+		@Override
+		protected void expire()
+		{
+			event_loop.expireRequest(this);
+		}
+	}
+	
+	// The future of a request made by requestAsync. When it is completed by anyone but the poller - most often cancelled by the caller, e.g. an
+	// interrupted requestSync - nobody waits for the reply anymore, so the event loop removes its pending request. Otherwise a request without
+	// a timeout would stay outstanding for good, counting against its dealer and replica
+	private class ReplyFuture extends CompletableFuture<GeneratedMessage>
+	{
+		private final PendingRequest pending_request;
+		
+		protected ReplyFuture(PendingRequest pending_request)
+		{
+			this.pending_request = pending_request;
+		}
+		
+		@Override
+		public boolean complete(GeneratedMessage value)
+		{
+			return completed(super.complete(value));
+		}
+		
+		@Override
+		public boolean completeExceptionally(Throwable ex)
+		{
+			return completed(super.completeExceptionally(ex));
+		}
+		
+		@Override
+		public boolean cancel(boolean may_interrupt)
+		{
+			return completed(super.cancel(may_interrupt));
+		}
+		
+		// The poller completes the future after removing the pending request, so then this finds nothing to remove
+		private boolean completed(boolean completed)
+		{
+			EventLoop event_loop = pending_request.event_loop;
+			if (completed && (event_loop != null))
+			{
+				if (event_loop.isLoopThread())
+				{
+					event_loop.cancelRequest(pending_request);
+				}
+				else
+				{
+					OutboundMessage outbound_message = new OutboundMessage(OutboundMessage.CANCEL, null);
+					outbound_message.pending_request = pending_request;
+					event_loop.post(outbound_message);
+				}
+			}
+			return completed;
+		}
+	}
+	
+	// On the wire, message types are identified by their compact type id. The registry also holds the parser of each type
+	private TypeRegistry type_registry;
+	
+	// Recorded by all the event loops and handler threads (see CommMetrics)
+	private CommMetrics metrics;
+	private ObjectName metrics_mbean_name;
+	
+	// In legacy framing messages are sent in the original framing, without the header frame: the request id, type name and message as
+	// separate frames (see Envelope). Both framings are always received
+	private boolean legacy_framing;
+	
+	private final static long POLL_INTERVAL = 200;
+	
+	// Limits the requests being handled at once, shared by the main event loop and the workers. null for no limit
+	private ConcurrencyLimit concurrency_limit;
+	
+	// With fair scheduling, the main event loop queues the requests from the router per peer, and passes them on in fair order - to the
+	// workers, or back to itself - while the concurrency limit allows. null for handling requests in the order received
+	private PeerScheduler peer_scheduler;
+	private ArrayList<byte[]> scheduled_frames;
+	
+	// Identifies this CommManager to services, as the peer of its requests (see setClientId)
+	private String client_id;
+	
+	// Amount of dealers (i.e. connections) each event loop opens to an address
+	private int dealers_per_address;
+	
+	// Most messages an event loop receives from a ready socket per poll. 1 for one message per poll
+	private int max_receive_batch;
+	
+	// Busy polling settings (see setBusyPolling). Negative spins for the blocking poll
+	private int busy_poll_spins;
+	private int busy_poll_yields;
+	private long busy_poll_max_park;
+	
+	// Creates the threads of the event loops other than the main one, and of the workers. null for the default daemon threads
+	private ThreadFactory event_loop_thread_factory;
+	
+	// Service groups by name. A group belongs to the event loop its name is assigned to, like the dealers of an address.
+	// Groups are replaced as a whole when their replicas change, so the map may change while running
+	private ConcurrentHashMap<String, ServiceGroup> service_groups;
+	
+	// An event loop polls its own sockets on its own thread, and owns everything the poller thread uses: the dealers of its shard, its
+	// mailbox, and the correlation state of the requests it sent. The main event loop also polls the router and the subscriber.
+	private class EventLoop implements Runnable
+	{
+		// Request ids are 32 bits on the wire, in the correlation id of the header frame (see Envelope). They pass on the wire twice (request and
+		// reply), and a single service isn't likely to have anywhere near 2^32 simultaneous requests.
+		private int next_request_id;
+		private HashMap<String, DealerPool> dealers;
+		
+		// The socket this loop receives requests on, and sends their replies through. The router for the main event loop, unless there are
+		// workers. Worker event loops handle the requests by a copy of the handlers taken when they start
+		private ZMQ.Socket request_socket;
+		private HashMap<Descriptor, MessageHandler> request_handlers;
+		
+		// Whether the request being received holds a permit of the concurrency limit, and when it was admitted. A handler task run by an
+		// executor takes the permit over, and releases it when done
+		private boolean admission_held;
+		private long admission_nanos;
+		private ZMQ.Poller polled_items;
+		private volatile Thread thread;
+		
+		private MpscQueue<OutboundMessage> outbound_mailbox;
+		private AtomicBoolean wakeup_signalled;
+		private ZMQ.Socket wakeup_sender;
+		private ZMQ.Socket wakeup_receiver;
+		
+		private IntObjectMap<PendingRequest> pending_requests;
+		private TimingWheel request_timeouts;
+		private ArrayList<PendingRequest> expired_requests;
+		private long now_millis;
+		
+		// Serializes sent messages. The header frame of publications is cached per type in the registry, and shared by all of them
+		private FrameSerializer frame_serializer;
+		
+		// Every message starts with a header frame (see Envelope), decoded into this instance by the thread of the loop
+		private Envelope received_envelope;
+		
+		// Most messages received from a ready socket per poll (see setReceiveBatch)
+		private int receive_batch;
+		
+		// Backs off between non-blocking polls, with busy polling. null for the blocking poll
+		private BackoffIdler idler;
+		
+		// Polls which received messages, and the messages they received. Written only by the thread of the loop
+		private volatile long wakeups;
+		private volatile long received_messages;
+		
+		private EventLoop()
+		{
+			dealers = new HashMap<String, DealerPool>();
+			polled_items = new ZMQ.Poller(2);
+			next_request_id = 0;
+			now_millis = System.currentTimeMillis();
+			request_timeouts = new TimingWheel(TIMEOUT_TICK, TIMEOUT_WHEEL_SIZE, now_millis);
+			pending_requests = new IntObjectMap<PendingRequest>(64);
+			expired_requests = new ArrayList<PendingRequest>();
+			frame_serializer = new FrameSerializer();
+			received_envelope = new Envelope();
+			receive_batch = 1;
+			
+			outbound_mailbox = new MpscQueue<OutboundMessage>();
+			wakeup_signalled = new AtomicBoolean();
+			String wakeup_addr = "inproc://commmanager-wakeup-" + next_instance_id.incrementAndGet();
+			wakeup_receiver = context.socket(ZMQ.PAIR);
+			wakeup_receiver.bind(wakeup_addr);
+			wakeup_sender = context.socket(ZMQ.PAIR);
+			wakeup_sender.connect(wakeup_addr);
+			polled_items.register(wakeup_receiver, ZMQ.Poller.POLLIN);
+		}
 		
-		protected RequestTimeoutMark(long timeout, int request_id)
+		private void close()
 		{
-			this.timeout = timeout;
-			this.request_id = request_id;
+			for (DealerPool dealer_pool : dealers.values())
+			{
+				dealer_pool.close();
+			}
+			
+			wakeup_sender.close();
+			wakeup_receiver.close();
 		}
 		
 		@Override
-		public int compareTo(RequestTimeoutMark o) {
-			return Long.compare(timeout, o.timeout);
+		public void run()
+		{
+			// The idler is set before the volatile thread, so a producer which sees the thread (see wakeUp) also sees the idler it may unpark
+			idler = (busy_poll_spins >= 0) ? new BackoffIdler(busy_poll_spins, busy_poll_yields, busy_poll_max_park) : null;
+			thread = Thread.currentThread();
+		
+	        //  Process messages from all sockets
+	        while (!Thread.currentThread ().isInterrupted ()) {
+        	
+	        	// Poll for receiving a message
+	            if (idler == null)
+	            {
+	            	polled_items.poll(getPollTimeout());
+	            }
+	            else if (polled_items.poll(0) > 0)
+	            {
+	            	idler.reset();
+	            }
+	            else
+	            {
+	            	idler.idle();
+	            }
+            
+	            // Read the clock once per iteration - the timeouts only need the resolution of a wheel tick
+	            now_millis = System.currentTimeMillis();
+            
+	            // Send what other threads queued, before any new request is received
+	            drainOutboundMailbox();
+	            checkRequestTimeouts();
+            
+	            int item_index;
+	            ZMQ.Socket socket;
+	            int size = polled_items.getSize();
+            
+	            // Find out which socket receives the message
+	            int most_received = 0;
+	            boolean backlog = false;
+	            boolean scheduled = false;
+	            for (item_index = 0; item_index < size; item_index++)
+	            {
+	            	if (!polled_items.pollin(item_index))
+	            	{
+	            		continue;
+	            	}
+	            	socket = polled_items.getSocket(item_index);
+	            	
+	            	if ((socket == router) && (peer_scheduler != null) && (worker_backend != null))
+	            	{
+	            		// Fair scheduling drains the router by itself, up to its own batch, whatever the receive batch. Without workers the requests
+	            		// come back to this loop through the backend, and count once there
+	            		int scheduled_requests = receiveScheduled();
+	            		if (worker_loops != null)
+	            		{
+	            			received_messages += scheduled_requests;
+	            			scheduled |= (scheduled_requests > 0);
+	            		}
+	            		continue;
+	            	}
+	            	
+	            	// One message per ready socket, unless batching also drains the messages already waiting - up to the batch size, so a busy
+	            	// socket doesn't hold up the others
+	            	int received;
+	            	for (received = 0; (received < receive_batch) && ((received == 0) || hasMessage(socket)); received++)
+	            	{
+	            		byte[] peer_id = null;
+	            		HashMap<Descriptor, MessageHandler> message_handlers = null;
+	            		PendingRequest pending_request = null;
+	            		long deadline = 0;
+	            		long forwarded_deadline = 0;
+	            		long forwarded_admission_nanos = 0;
+	            	
+		            	if (socket == wakeup_receiver)
+		            	{
+		            		// The mailbox was already drained - the signal only ended the poll
+		            		continue;
+		            	}
+	            	
+		            	if (worker_backend != null)
+		            	{
+		            		// The main event loop of a service with workers proxies the requests to them, and the replies back
+		            		if (socket == router)
+		            		{
+		            			if (admitRequest())
+		            			{
+		            				forwardRequest();
+		            			}
+		            			else
+		            			{
+		            				rejectRequest();
+		            			}
+		            			continue;
+		            		}
+		            		if (socket == worker_backend)
+		            		{
+		            			forward(worker_backend, router);
+		            			continue;
+		            		}
+		            	}
+		            	
+		            	if (socket == request_socket)
+		            	{
+		            		// Get the peer id, which is the first part of the message received by a router socket (and kept by the proxy)
+		            		peer_id = request_socket.recv();
+		            		if ((request_socket != router) && request_socket.hasReceiveMore())
+		            		{
+		            			// Passed on by the main event loop, with the forwarding frame it added on receiving the request
+		            			byte[] forwarding = request_socket.recv();
+		            			forwarded_admission_nanos = Envelope.readForwardedAdmission(forwarding);
+		            			forwarded_deadline = Envelope.readForwardedDeadline(forwarding);
+		            		}
+		            	}
+	            	
+		            	if (!recvEnvelope(socket))
+		            	{
+		            		// TODO: Throw proper exception
+		            		metrics.malformed_messages.incrementAndGet();
+		            		while (socket.hasReceiveMore())
+		            		{
+		            			socket.recv();
+		            		}
+		            		continue;
+		            	}
+		            	int request_id = received_envelope.correlation_id;
+	            	
+		            	if (socket == request_socket)
+		            	{
+		            		// With workers or fair scheduling, the requests were already admitted by the main event loop
+		            		if ((socket == router) && !admitRequest())
+		            		{
+		            			rejectRequest(peer_id);
+		            			continue;
+		            		}
+		            		admission_held = (concurrency_limit != null);
+		            		// A request passed on by the main event loop counts from its admission there, so the latency the limit adapts to includes
+		            		// the time it waited in the peer queues and for a worker - which is what grows under overload
+		            		admission_nanos = (socket != router) ? forwarded_admission_nanos : System.nanoTime();
+		            		
+		            		message_handlers = (request_handlers != null) ? request_handlers : router_message_handlers;
+		            		if (socket != router)
+		            		{
+		            			// Counts from when the main event loop received the request, not from when it got here
+		            			deadline = forwarded_deadline;
+		            		}
+		            		else if (received_envelope.timeout > 0)
+		            		{
+		            			// Past this time the requester no longer waits for the reply
+		            			deadline = now_millis + received_envelope.timeout;
+		            		}
+		            	}
+		            	else if (socket == subscriber)
+		            	{
+		            		message_handlers = subscriber_message_handlers;
+		            	}
+		            	else
+		            	{
+		            		// Socket is one of the dealers
+		            		pending_request = pending_requests.remove(request_id);
+		            		if (pending_request != null)
+		            		{
+		            			request_timeouts.cancel(pending_request);
+		            			pending_request.dealer_pool.requestDone(pending_request.dealer_index);
+		            			metrics.outstanding_requests.decrementAndGet();
+		            			if (received_envelope.isBusy())
+		            			{
+		            				rejectPendingRequest(pending_request);
+		            			}
+		            			else
+		            			{
+		            				long received_nanos = System.nanoTime();
+		            				metrics.round_trip.record(received_nanos - pending_request.sent_nanos);
+		            				if (pending_request.replica != null)
+		            				{
+		            					pending_request.replica.requestDone(pending_request.sent_nanos, received_nanos);
+		            				}
+		            			}
+		            		}
+	            		
+		            		if (pending_request == null)
+		            		{
+		            			// This is a reply to an unexpected request (probably expired). The payload is still received, and dropped
+		            			metrics.unexpected_replies.incrementAndGet();
+		            		}
+		            		
+		            		if (received_envelope.isBusy())
+		            		{
+		            			// A Busy reply has no message to handle
+		            			while (socket.hasReceiveMore())
+		            			{
+		            				socket.recv();
+		            			}
+		            			continue;
+		            		}
+		            	}
+	            	  
+		            	try
+		            	{
+		            		recvAndHandlePayload(socket, peer_id, request_id, deadline, message_handlers, pending_request);
+		            	}
+		            	catch (Exception ex)
+		            	{
+	            		
+		            	}
+		            	
+		            	// The permit of a request handled inline is released here, and of a request handed to an executor by its task
+		            	if (admission_held)
+		            	{
+		            		admission_held = false;
+		            		releaseAdmission(admission_nanos);
+		            	}
+	            	}
+	            	
+	            	if (socket != wakeup_receiver)
+	            	{
+	            		received_messages += received;
+	            		most_received = Math.max(most_received, received);
+	            		backlog |= (max_receive_batch > 1) && (received == receive_batch) && hasMessage(socket);
+	            	}
+	            }
+	            
+	            if ((most_received > 0) || scheduled)
+	            {
+	            	wakeups++;
+	            }
+	            adaptReceiveBatch(most_received, backlog);
+	            
+	            if ((peer_scheduler != null) && (this == main_loop))
+	            {
+	            	dispatchScheduled();
+	            }
+	        }
+        
+	        thread = null;
+		}
+
+		private boolean hasMessage(ZMQ.Socket socket)
+		{
+			return (socket.getEvents() & ZMQ.Poller.POLLIN) != 0;
+		}
+	
+		// Grows the batch while a socket has more messages waiting than it drains, and shrinks it back once the sockets keep up
+		private void adaptReceiveBatch(int most_received, boolean backlog)
+		{
+			if (backlog)
+			{
+				receive_batch = Math.min(max_receive_batch, receive_batch * 2);
+			}
+			else if (most_received * 4 <= receive_batch)
+			{
+				receive_batch = Math.max(1, receive_batch / 2);
+			}
+		}
+	
+		// Receives the header of a message into received_envelope, in either framing. A message in the original framing starts with the request
+		// id on routers and dealers, and with the type name on the subscriber - neither of which has the version byte of a header frame
+		private boolean recvEnvelope(ZMQ.Socket socket)
+		{
+			byte[] frame = socket.recv();
+			if (Envelope.isHeader(frame))
+			{
+				return received_envelope.decode(frame);
+			}
+		
+			int request_id = 0;
+			if (socket != subscriber)
+			{
+				if ((frame.length != 4) || !socket.hasReceiveMore())
+				{
+					return false;
+				}
+				request_id = Envelope.readInt(frame, 0);
+				frame = socket.recv();
+			}
+			if (!socket.hasReceiveMore())
+			{
+				return false;
+			}
+		
+			TypeRegistry.Entry message_type = type_registry.getEntryByLegacyName(frame);
+			if (message_type == null)
+			{
+				return false;
+			}
+			received_envelope.decodeLegacy(message_type.type_id, request_id);
+			return true;
+		}
+	
+		// Receives the payload - a single message, or a batch of messages of one type - and handles each message
+		// Messages are parsed straight from the frames ZMQ received, without copying them. Parsed messages don't reference the frames, so
+		// nothing holds on to them once this returns
+		private void recvAndHandlePayload(ZMQ.Socket socket, byte[] peer_id, int request_id, long deadline,
+				HashMap<Descriptor, MessageHandler> message_handlers, PendingRequest pending_request)
+				throws IOException
+		{
+			TypeRegistry.Entry message_type = type_registry.getEntry(received_envelope.type_id);
+		
+			// Get message bytes, and parse according to type
+			byte[] message_bytes = socket.recv();
+		
+			if (message_type == null)
+			{
+				// TODO: Throw proper exception
+				metrics.malformed_messages.incrementAndGet();
+				while (socket.hasReceiveMore())
+				{
+					socket.recv();
+				}
+				return;
+			}
+			Parser<? extends GeneratedMessage> parser = message_type.parser;
+			metrics.messagesReceived(message_type, (received_envelope.message_count == Envelope.SINGLE_MESSAGE) ? 1 : received_envelope.message_count,
+					message_bytes.length);
+		
+			if (received_envelope.message_count == Envelope.SINGLE_MESSAGE)
+			{
+				handlePayload(socket, parser.parseFrom(message_bytes), peer_id, request_id, deadline, message_handlers, pending_request);
+			}
+			else
+			{
+				// A batch (see publishBatch) holds the length delimited messages. Each message is parsed in place, limiting the input to its length
+				int message_count = received_envelope.message_count;
+				CodedInputStream batch_input = CodedInputStream.newInstance(message_bytes);
+				for (int i = 0; i < message_count; i++)
+				{
+					int previous_limit = batch_input.pushLimit(batch_input.readRawVarint32());
+					GeneratedMessage message = parser.parseFrom(batch_input);
+					batch_input.popLimit(previous_limit);
+					handlePayload(socket, message, peer_id, request_id, deadline, message_handlers, pending_request);
+				}
+			}
+		}
+	
+		// Replies are handled by the handlers of their pending request, and other messages by the handlers of their socket
+		// A request with a deadline is dropped if the deadline passes before its handler runs, since the requester no longer waits for the reply
+		private void handlePayload(ZMQ.Socket socket, final GeneratedMessage message, final byte[] peer_id, final int request_id, final long deadline,
+				HashMap<Descriptor, MessageHandler> message_handlers, PendingRequest pending_request)
+		{
+			if ((message == null) || ((message_handlers == null) && (pending_request == null)))
+			{
+				return;
+			}
+		
+			// Find the appropriatae MessageHandler for this type
+			Descriptor message_type = message.getDescriptorForType();
+			if ((pending_request != null) && (pending_request.reply_future != null))
+			{
+				completeReplyFuture(pending_request, message);
+				return;
+			}
+		
+			final MessageHandler handler = (pending_request != null) ? pending_request.getReplyHandler(message_type) : message_handlers.get(message_type);
+			if (handler != null)
+			{
+				Executor executor = getHandlerExecutor(message_type, (socket == request_socket) || (socket == subscriber));
+			
+				if (executor == HandlerExecutors.inline())
+				{
+					if ((deadline == 0) || (now_millis <= deadline))
+					{
+						long start_nanos = System.nanoTime();
+						handler.handleMessage(message, peer_id, request_id);
+						metrics.handler_time.record(System.nanoTime() - start_nanos);
+					}
+					return;
+				}
+			
+				// Hand the message off, so the poller thread can go back to receiving
+				final boolean releases_admission = admission_held;
+				final long admitted_nanos = admission_nanos;
+				final long queued_nanos = System.nanoTime();
+				Runnable task = new Runnable() {
+					@Override
+					public void run()
+					{
+						try
+						{
+							if ((deadline == 0) || (System.currentTimeMillis() <= deadline))
+							{
+								long start_nanos = System.nanoTime();
+								metrics.queue_wait.record(start_nanos - queued_nanos);
+								handler.handleMessage(message, peer_id, request_id);
+								metrics.handler_time.record(System.nanoTime() - start_nanos);
+							}
+						}
+						finally
+						{
+							if (releases_admission)
+							{
+								releaseAdmission(admitted_nanos);
+							}
+						}
+					}
+				};
+			
+				try
+				{
+					if (executor instanceof StripedExecutor)
+					{
+						((StripedExecutor) executor).execute(getOrderingKey(message_type, message, peer_id), task);
+					}
+					else
+					{
+						executor.execute(task);
+					}
+					admission_held = false;
+				}
+				catch (RejectedExecutionException ex)
+				{
+					// TODO: Throw proper exception
+					metrics.rejected_handler_tasks.incrementAndGet();
+				}
+			}
+			else
+			{
+				// TODO: Throw proper exception
+				metrics.unhandled_messages.incrementAndGet();
+			}
+		}
+	
+		// Sends everything other threads queued in the mailbox
+		private void drainOutboundMailbox()
+		{
+			// Clear the flag before draining, so a message queued from now on signals the poller again. The socket is emptied whatever the flag
+			// says: a producer may have set the flag before this cleared it, and send its signal only after - which must not be left unread,
+			// or every poll would return at once
+			wakeup_signalled.set(false);
+			while (wakeup_receiver.recv(ZMQ.DONTWAIT) != null) { }
+		
+			OutboundMessage outbound_message;
+			while ((outbound_message = outbound_mailbox.poll()) != null)
+			{
+				try
+				{
+					switch (outbound_message.kind)
+					{
+					case OutboundMessage.REQUEST:
+						sendRequest(outbound_message.addr, outbound_message.replica, outbound_message.message, outbound_message.pending_request,
+								outbound_message.deadline);
+						break;
+					case OutboundMessage.REPLY:
+						sendReply(outbound_message.message, outbound_message.peer_id, outbound_message.request_id);
+						break;
+					case OutboundMessage.PUBLISH:
+						send(publisher, outbound_message.message, false, 0, 0);
+						break;
+					case OutboundMessage.PUBLISH_BATCH:
+						sendBatch(publisher, outbound_message.batch);
+						break;
+					case OutboundMessage.CANCEL:
+						cancelRequest(outbound_message.pending_request);
+						break;
+					}
+				}
+				catch (RuntimeException ex)
+				{
+					// A message which can't be sent (e.g. publishing without a bound publisher) must not stop the poller
+					// TODO: Throw proper exception
+					metrics.failed_sends.incrementAndGet();
+				}
+			}
+		}
+	
+		// Queue a message for the poller thread, and wake it up if it wasn't yet
+		private void post(OutboundMessage outbound_message)
+		{
+			outbound_mailbox.offer(outbound_message);
+			wakeUp();
+		}
+	
+		// Ends the poll of the loop, if it wasn't already signalled since it last drained its mailbox
+		private void wakeUp()
+		{
+			if (wakeup_signalled.compareAndSet(false, true))
+			{
+				synchronized (wakeup_sender) {
+					wakeup_sender.send(WAKEUP_SIGNAL, ZMQ.DONTWAIT);
+				}
+			}
+			
+			// A busy polling loop doesn't block in the poll, but may be parked. The thread is read first (see run)
+			Thread loop_thread = thread;
+			if ((idler != null) && (loop_thread != null))
+			{
+				LockSupport.unpark(loop_thread);
+			}
+		}
+	
+		private boolean isLoopThread()
+		{
+			return Thread.currentThread() == thread;
+		}
+	
+		// Expires the requests whose timeout passed, and runs their timeout handlers
+		private void checkRequestTimeouts()
+		{
+			// Advanced on every iteration, also without timeouts, as an empty wheel just skips to the current tick - otherwise the first timeout
+			// after an idle period would step through every tick of the period
+			request_timeouts.advance(now_millis);
+		
+			// The handlers run after advancing the wheel, as they may well send a new request
+			for (int i = 0; i < expired_requests.size(); i++)
+			{
+				PendingRequest pending_request = expired_requests.get(i);
+				if (pending_request.reply_future != null)
+				{
+					pending_request.reply_future.completeExceptionally(new TimeoutException("Request " + pending_request.request_id + " timed out"));
+				}
+				else if (pending_request.timeout_handler != null)
+				{
+					runTimeoutHandler(pending_request, false);
+				}
+			}
+			expired_requests.clear();
+		}
+	
+		// While requests are outstanding, the poller must wake up at least once per tick to expire them in time
+		private long getPollTimeout()
+		{
+			long timeout = (request_timeouts.size() > 0) ? Math.min(POLL_INTERVAL, request_timeouts.getTickMillis()) : POLL_INTERVAL;
+			
+			// Queued requests are passed on as soon as the concurrency limit allows (a release wakes the loop up), or their peer gets a token
+			if ((peer_scheduler != null) && (this == main_loop) && peer_scheduler.hasRequests() && concurrency_limit.hasCapacity())
+			{
+				timeout = Math.min(timeout, peer_scheduler.getWaitMillis(System.nanoTime()));
+			}
+			return timeout;
+		}
+	
+		// Called by the timing wheel when a request timed out. Its entry is removed, so a late reply is dropped
+		private void expireRequest(PendingRequest pending_request)
+		{
+			pending_requests.remove(pending_request.request_id);
+			pending_request.dealer_pool.requestDone(pending_request.dealer_index);
+			metrics.outstanding_requests.decrementAndGet();
+			metrics.timeouts.incrementAndGet();
+			if (pending_request.replica != null)
+			{
+				// Counts as a reply which took as long as the timeout, so the replica gets less traffic
+				pending_request.replica.requestDone(pending_request.sent_nanos, System.nanoTime());
+			}
+			expired_requests.add(pending_request);
+		}
+	
+		// The requester gave up on the request (see ReplyFuture). Its entry is removed, so a late reply is dropped
+		private void cancelRequest(PendingRequest pending_request)
+		{
+			if (pending_requests.get(pending_request.request_id) != pending_request)
+			{
+				// Already replied, timed out or rejected
+				return;
+			}
+		
+			pending_requests.remove(pending_request.request_id);
+			request_timeouts.cancel(pending_request);
+			pending_request.dealer_pool.requestDone(pending_request.dealer_index);
+			metrics.outstanding_requests.decrementAndGet();
+			if (pending_request.replica != null)
+			{
+				pending_request.replica.requestCancelled();
+			}
+		}
+	
+		// Sends the request, after registering its pending request. A request without a pending request has no reply, and isn't tracked at all
+		// Runs on the thread of the event loop only
+		private void sendRequest(String addr, ServiceGroup.Replica replica, GeneratedMessage message, PendingRequest pending_request, long deadline)
+		{
+			int request_id = ++next_request_id;
+		
+			// A request to a service group goes to one of its replicas, unless the replica was already chosen by the key of the request
+			long sent_nanos = System.nanoTime();
+			ServiceGroup service_group = (replica == null) ? service_groups.get(addr) : null;
+			if ((replica != null) || (service_group != null))
+			{
+				if (replica == null)
+				{
+					replica = service_group.select(sent_nanos);
+				}
+				addr = replica.addr;
+			}
+		
+			DealerPool dealer_pool = dealers.get(addr);
+			if (dealer_pool == null) {
+				dealer_pool = new DealerPool(context, addr, dealers_per_address, client_id);
+				dealers.put(addr, dealer_pool);
+				for (int i = 0; i < dealer_pool.size(); i++)
+				{
+					polled_items.register(dealer_pool.getDealer(i), ZMQ.Poller.POLLIN);
+				}
+				metrics.dealers.addAndGet(dealer_pool.size());
+			}
+			int dealer_index = dealer_pool.select();
+		
+			// The reply handlers and the timeout must be in place before sending, as the reply may arrive right away
+			if (pending_request != null)
+			{
+				pending_request.request_id = request_id;
+				pending_request.event_loop = this;
+				pending_request.dealer_pool = dealer_pool;
+				pending_request.dealer_index = dealer_index;
+				pending_requests.put(request_id, pending_request);
+				dealer_pool.requestSent(dealer_index);
+				metrics.outstanding_requests.incrementAndGet();
+				pending_request.sent_nanos = sent_nanos;
+				if (replica != null)
+				{
+					pending_request.replica = replica;
+					replica.requestSent();
+				}
+			
+				// The timeout handler gets the request, so it can retry it
+				if (pending_request.timeout_handler != null)
+				{
+					pending_request.request = message;
+				}
+			
+				// Set timeout value after which the reply is invalid
+				if (deadline > 0)
+				{
+					request_timeouts.schedule(pending_request, deadline);
+				}
+			}
+		
+			// The requester's timeout goes with the request, so the service can skip it once nobody waits for the reply
+			long timeout = (deadline > 0) ? Math.max(deadline - now_millis, 1) : 0;
+			send(dealer_pool.getDealer(dealer_index), message, true, request_id, timeout);
+		}
+	
+		private void sendReply(GeneratedMessage message, byte[] peer_id, int request_id)
+		{
+			// First tell router which dealer to send the message
+			request_socket.send(peer_id, ZMQ.SNDMORE);
+			send(request_socket, message, true, request_id, 0);
+		}
+	
+		// Passes a message on between the router and the workers, frame by frame - the peer id frame included, so the reply finds its way back
+		private void forward(ZMQ.Socket from, ZMQ.Socket to)
+		{
+			boolean more;
+			do
+			{
+				byte[] frame = from.recv();
+				more = from.hasReceiveMore();
+				to.send(frame, more ? ZMQ.SNDMORE : 0);
+			}
+			while (more);
+		}
+	
+		// Passes an admitted request on from the router to the workers, with a forwarding frame after the peer id (see Envelope)
+		private void forwardRequest()
+		{
+			byte[] peer_id = router.recv();
+			byte[] header = router.recv();
+			worker_backend.send(peer_id, ZMQ.SNDMORE);
+			worker_backend.send(Envelope.encodeForwarding(System.nanoTime(), getDeadline(header)), ZMQ.SNDMORE);
+			if (router.hasReceiveMore())
+			{
+				worker_backend.send(header, ZMQ.SNDMORE);
+				forward(router, worker_backend);
+			}
+			else
+			{
+				worker_backend.send(header);
+			}
+		}
+	
+		// The deadline of a request by the first frame after its peer id, received just now on the router. 0 for a request without a timeout,
+		// or in the original framing, which has none
+		private long getDeadline(byte[] header)
+		{
+			if (Envelope.isHeader(header) && received_envelope.decode(header) && (received_envelope.timeout > 0))
+			{
+				return now_millis + received_envelope.timeout;
+			}
+			return 0;
+		}
+	
+		private boolean admitRequest()
+		{
+			return (concurrency_limit == null) || concurrency_limit.tryAcquire();
+		}
+	
+		// Answers a request over the concurrency limit with a Busy reply, without receiving its payload. The original framing has no Busy reply,
+		// so a request in it is dropped, and its requester times out
+		private void rejectRequest(byte[] peer_id)
+		{
+			while (router.hasReceiveMore())
+			{
+				router.recv();
+			}
+		
+			sendBusy(peer_id);
 		}
+	
+		// Replies Busy to the request whose header was received last
+		private void sendBusy(byte[] peer_id)
+		{
+			metrics.rejected_requests.incrementAndGet();
+			if (!received_envelope.legacy)
+			{
+				router.send(peer_id, ZMQ.SNDMORE);
+				router.send(Envelope.encodeBusy(received_envelope.type_id, received_envelope.correlation_id), ZMQ.SNDMORE);
+				router.send(BUSY_PAYLOAD);
+			}
+		}
+	
+		// Moves the requests waiting in the router to the queues of their peers. A request which finds the queue of its peer full is rejected
+		// Returns the amount of requests received
+		private int receiveScheduled()
+		{
+			long now_nanos = System.nanoTime();
+			byte[] peer_id;
+			int received;
+			for (received = 0; (received < SCHEDULING_BATCH) && ((peer_id = router.recv(ZMQ.DONTWAIT)) != null); received++)
+			{
+				scheduled_frames.clear();
+				scheduled_frames.add(peer_id);
+				while (router.hasReceiveMore())
+				{
+					scheduled_frames.add(router.recv());
+				}
+				
+				// The forwarding frame goes in now, so the time the request waits in its queue counts against its deadline, and in the latency
+				// of the adaptive limit - although its permit is only taken once it leaves the queue
+				byte[] header = (scheduled_frames.size() > 1) ? scheduled_frames.get(1) : new byte[0];
+				scheduled_frames.add(1, Envelope.encodeForwarding(now_nanos, getDeadline(header)));
+				byte[][] request = scheduled_frames.toArray(new byte[scheduled_frames.size()][]);
+			
+				if (!peer_scheduler.enqueue(request, now_nanos) && Envelope.isHeader(header) && received_envelope.decode(header))
+				{
+					sendBusy(peer_id);
+				}
+			}
+			return received;
+		}
+	
+		// Passes the queued requests on to the handling loops in fair order, while the concurrency limit allows
+		private void dispatchScheduled()
+		{
+			long now_nanos = System.nanoTime();
+			for (int i = 0; (i < SCHEDULING_BATCH) && concurrency_limit.hasCapacity(); i++)
+			{
+				byte[][] request = peer_scheduler.next(now_nanos);
+				if (request == null)
+				{
+					break;
+				}
+			
+				concurrency_limit.acquire();
+				for (int frame = 0; frame < request.length; frame++)
+				{
+					worker_backend.send(request[frame], (frame < request.length - 1) ? ZMQ.SNDMORE : 0);
+				}
+			}
+		}
+	
+		// With workers, a request is rejected by the main event loop before it receives any of it
+		private void rejectRequest()
+		{
+			byte[] peer_id = router.recv();
+			if (recvEnvelope(router))
+			{
+				rejectRequest(peer_id);
+			}
+			else
+			{
+				while (router.hasReceiveMore())
+				{
+					router.recv();
+				}
+			}
+		}
+	
+		// The service rejected the request as busy. Its requester is told right away, as if it timed out
+		private void rejectPendingRequest(PendingRequest pending_request)
+		{
+			metrics.busy_replies.incrementAndGet();
+			if (pending_request.replica != null)
+			{
+				pending_request.replica.requestRejected(System.nanoTime());
+			}
+		
+			if (pending_request.reply_future != null)
+			{
+				pending_request.reply_future.completeExceptionally(
+						new RejectedExecutionException("Request " + pending_request.request_id + " rejected by a busy service"));
+			}
+			else if (pending_request.timeout_handler != null)
+			{
+				runTimeoutHandler(pending_request, true);
+			}
+		}
+	
+		// Sends each run of same typed messages as a batch envelope: type, message count, and the length delimited messages
+		// The original framing has no batches, so there the messages are sent one by one
+		private void sendBatch(ZMQ.Socket socket, List<? extends GeneratedMessage> messages)
+		{
+			if (legacy_framing)
+			{
+				for (GeneratedMessage message : messages)
+				{
+					send(socket, message, false, 0, 0);
+				}
+				return;
+			}
+		
+			int run_start = 0;
+			while (run_start < messages.size())
+			{
+				Descriptor run_type = messages.get(run_start).getDescriptorForType();
+				int run_end = run_start + 1;
+				int batch_size = FrameSerializer.delimitedSize(messages.get(run_start));
+				while ((run_end < messages.size()) && (messages.get(run_end).getDescriptorForType() == run_type))
+				{
+					batch_size += FrameSerializer.delimitedSize(messages.get(run_end));
+					run_end++;
+				}
+			
+				TypeRegistry.Entry run_entry = type_registry.getEntry(run_type);
+				socket.send(Envelope.encode(run_entry.type_id, 0, 0, run_end - run_start), ZMQ.SNDMORE);
+				socket.send(frame_serializer.serializeDelimited(messages, run_start, run_end, batch_size));
+				metrics.messagesSent(run_entry, run_end - run_start, batch_size);
+			
+				run_start = run_end;
+			}
+		}
+	
+		/**
+		 * Send a message of one of the defined types: the header frame, and the message bytes
+		 * @param message	Message to serialze and send
+		 * @param correlated	Whether this is a request or a reply, which carries its request id
+		 * @param timeout	Milliseconds the requester waits for the reply, or 0
+		 */
+		private void send(ZMQ.Socket socket, GeneratedMessage message, boolean correlated, int request_id, long timeout)
+		{
+			// Sending is done as multi-part message
+			TypeRegistry.Entry message_type = type_registry.getEntry(message.getDescriptorForType());
+		
+			if (legacy_framing)
+			{
+				// The request id and the message type name are separate parts. The subscription filter will only run on the type name.
+				// There is no timeout field, so the service never drops the request as expired
+				if (correlated)
+				{
+					socket.send(FrameSerializer.intFrame(request_id), ZMQ.SNDMORE);
+				}
+				socket.send(message_type.legacy_name, ZMQ.SNDMORE);
+			}
+			else if (!correlated)
+			{
+				// All publications of a type have the same header, starting with the type id the subscription filter runs on
+				socket.send(message_type.publication_header, ZMQ.SNDMORE);
+			}
+			else
+			{
+				socket.send(Envelope.encode(message_type.type_id, request_id, timeout, Envelope.SINGLE_MESSAGE), ZMQ.SNDMORE);
+			}
+		
+			// Send the message bytes in teh last part
+			byte[] message_bytes = frame_serializer.serialize(message);
+			socket.send(message_bytes);
+			metrics.messagesSent(message_type, 1, message_bytes.length);
+		}
+	}
+	
+	/**
+	 * Constructs a CommManager for the message types defined in Messages
+	 */
+	public CommManager()
+	{
+		this(new TypeRegistry(Messages.getDescriptor()));
+	}
+	
+	/**
+	 * Constructs a CommManager for the message types of a registry. All the types sent or received must be registered in it, and
+	 * the peers must use the same type ids.
+	 * @param type_registry - Registry of the message types and their ids
+	 */
+	public CommManager(TypeRegistry type_registry)
+	{
+		this(type_registry, 1, 1);
+	}
+	
+	/**
+	 * Constructs a CommManager with several event loops, for clients which send requests to many services. The dealers of each address are
+	 * assigned to an event loop by the hash of the address, and each event loop polls and handles its dealers on a thread of its own.
+	 * The extra event loop threads are started by run(), and stop with it.
+	 * @param type_registry - Registry of the message types and their ids
+	 * @param io_threads - Amount of ZMQ I/O threads, which do the actual network reads and writes. One per event loop is a good start
+	 * @param event_loops - Amount of event loops, including the main one which runs on the thread calling run()
+	 */
+	public CommManager(TypeRegistry type_registry, int io_threads, int event_loops)
+	{
+		if ((io_threads < 1) || (event_loops < 1))
+		{
+			throw new IllegalArgumentException("There must be at least one I/O thread and one event loop");
+		}
+		
+		this.type_registry = type_registry;
+		metrics = new CommMetrics(type_registry);
+		context = ZMQ.context(io_threads);
+		subscriber_message_handlers = new HashMap<Descriptor, MessageHandler>();
+		router_message_handlers = new HashMap<Descriptor, MessageHandler>();
+		handler_executors = new HashMap<Descriptor, Executor>();
+		default_handler_executor = HandlerExecutors.inline();
+		handler_key_extractors = new HashMap<Descriptor, MessageKeyExtractor>();
+		dealers_per_address = 1;
+		max_receive_batch = 1;
+		busy_poll_spins = -1;
+		service_groups = new ConcurrentHashMap<String, ServiceGroup>();
+		
+		this.event_loops = new EventLoop[event_loops];
+		for (int i = 0; i < event_loops; i++)
+		{
+			this.event_loops[i] = new EventLoop();
+		}
+		main_loop = this.event_loops[0];
+	}
+	
+	/**
+	 * Closes socket, and ends context.
+	 */
+	public void close()
+	{
+		if (publisher != null)
+		{
+			publisher.close();
+		}
+		
+		if (subscriber != null)
+		{
+			subscriber.close();
+		}
+		
+		if (router != null)
+		{
+			router.close();
+		}
+		
+		for (EventLoop event_loop : event_loops)
+		{
+			event_loop.close();
+		}
+		
+		if (worker_loops != null)
+		{
+			for (EventLoop worker_loop : worker_loops)
+			{
+				worker_loop.request_socket.close();
+				worker_loop.close();
+			}
+		}
+		if (worker_backend != null)
+		{
+			if ((main_loop.request_socket != null) && (main_loop.request_socket != router))
+			{
+				main_loop.request_socket.close();
+			}
+			worker_backend.close();
+		}
+		
+		if (virtual_thread_executor != null)
+		{
+			virtual_thread_executor.shutdown();
+		}
+		
+		if (metrics_mbean_name != null)
+		{
+			try
+			{
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(metrics_mbean_name);
+			}
+			catch (JMException ex) { }
+		}
+		
+		context.term();
+	}
+	
+	/**
+	 * Runs the main event loop on the calling thread, and the other event loops (and workers) on threads of their own, until the calling
+	 * thread is interrupted
+	 */
+	public void run()
+	{
+		if ((peer_scheduler != null) && (concurrency_limit == null))
+		{
+			// Requests wait in the peer queues only while the handling loops are busy. A couple per loop keeps them from idling between requests
+			concurrency_limit = new ConcurrencyLimit(2 * ((worker_loops != null) ? worker_loops.length : 1));
+		}
+		
+		ArrayList<Thread> loop_threads = new ArrayList<Thread>();
+		ThreadFactory loop_thread_factory = (event_loop_thread_factory != null) ? event_loop_thread_factory
+				: new HandlerExecutors.HandlerThreadFactory("comm-event-loop");
+		for (int i = 1; i < event_loops.length; i++)
+		{
+			loop_threads.add(loop_thread_factory.newThread(event_loops[i]));
+		}
+		if (worker_loops != null)
+		{
+			ThreadFactory worker_thread_factory = (event_loop_thread_factory != null) ? event_loop_thread_factory
+					: new HandlerExecutors.HandlerThreadFactory("comm-worker");
+			for (EventLoop worker_loop : worker_loops)
+			{
+				worker_loop.request_handlers = new HashMap<Descriptor, MessageHandler>(router_message_handlers);
+				loop_threads.add(worker_thread_factory.newThread(worker_loop));
+			}
+		}
+		for (Thread loop_thread : loop_threads)
+		{
+			loop_thread.start();
+		}
+		
+		main_loop.run();
+		
+		// The interrupt which stopped the main loop stops the others. Joining needs the flag cleared, and it's set again when done
+		for (Thread loop_thread : loop_threads)
+		{
+			loop_thread.interrupt();
+		}
+		Thread.interrupted();
+		for (Thread loop_thread : loop_threads)
+		{
+			try
+			{
+				loop_thread.join();
+			}
+			catch (InterruptedException ex)
+			{
+				break;
+			}
+		}
+		Thread.currentThread().interrupt();
+	}
+	
+	// The event loop which owns the dealers of an address, or a service group
+	private EventLoop getEventLoop(String addr)
+	{
+		return (event_loops.length == 1) ? main_loop : event_loops[(addr.hashCode() & 0x7FFFFFFF) % event_loops.length];
+	}
+	
+	// Releases the permit of a handled request. The main event loop may have queued requests waiting for it
+	private void releaseAdmission(long admission_nanos)
+	{
+		concurrency_limit.release(admission_nanos);
+		if ((peer_scheduler != null) && !main_loop.isLoopThread())
+		{
+			main_loop.wakeUp();
+		}
+	}
+	
+	// The event loop which sends a reply: the main event loop, or with workers the worker calling (or any worker, for a reply from another thread)
+	private EventLoop getReplyLoop(byte[] peer_id)
+	{
+		if (worker_loops == null)
+		{
+			return main_loop;
+		}
+		
+		for (EventLoop worker_loop : worker_loops)
+		{
+			if (worker_loop.isLoopThread())
+			{
+				return worker_loop;
+			}
+		}
+		return worker_loops[(Arrays.hashCode(peer_id) & 0x7FFFFFFF) % worker_loops.length];
+	}
+	
+	// Whether the calling thread is the thread of any event loop
+	private boolean isEventLoopThread()
+	{
+		for (EventLoop event_loop : event_loops)
+		{
+			if (event_loop.isLoopThread())
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	// Completes the future of a request made by requestAsync. Runs on the poller thread
+	private void completeReplyFuture(PendingRequest pending_request, GeneratedMessage message)
+	{
+		if (message.getDescriptorForType() == pending_request.reply_descriptor)
+		{
+			pending_request.reply_future.complete(message);
+		}
+		else
+		{
+			pending_request.reply_future.completeExceptionally(new IllegalStateException(
+					"Unexpected reply type " + message.getDescriptorForType().getName() + " for request " + pending_request.request_id));
+		}
+	}
+	
+	private Executor getHandlerExecutor(Descriptor message_type, boolean inbound)
+	{
+		Executor executor = handler_executors.get(message_type);
+		if (executor != null)
+		{
+			return executor;
+		}
+		
+		ExecutorService virtual_executor = virtual_thread_executor;
+		return (inbound && (virtual_executor != null)) ? virtual_executor : default_handler_executor;
+	}
+	
+	// Messages with the same key must be handled in order. If no key extractor was set, requests are ordered per peer and the rest per type
+	private long getOrderingKey(Descriptor message_type, GeneratedMessage message, byte[] peer_id)
+	{
+		MessageKeyExtractor key_extractor = handler_key_extractors.get(message_type);
+		if (key_extractor != null)
+		{
+			return key_extractor.extractKey(message, peer_id);
+		}
+		
+		return (peer_id != null) ? Arrays.hashCode(peer_id) : message_type.hashCode();
+	}
+	
+	// Timeout handlers run on the default executor, like any other callback
+	private void runTimeoutHandler(final PendingRequest pending_request, final boolean busy)
+	{
+		try
+		{
+			default_handler_executor.execute(new Runnable() {
+				@Override
+				public void run()
+				{
+					if (busy)
+					{
+						pending_request.timeout_handler.onBusy(pending_request.request, pending_request.request_id);
+					}
+					else
+					{
+						pending_request.timeout_handler.onTimeout(pending_request.request, pending_request.request_id);
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException ex)
+		{
+			// TODO: Throw proper exception
+			metrics.rejected_handler_tasks.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * Binds the publishing to a specific address.
+	 * @param addr	Address to bind for publishing.
+	 */
+	public void bindPublisher(String addr)
+	{
+		publisher = context.socket(ZMQ.PUB);
+		publisher.bind(addr);
+	}
+	
+	/**
+	 * Binds the router to a specific address.
+	 * @param addr - Address to bind
+	 */
+	public void listenOn(String addr)
+	{
+		if (router == null)
+		{
+			router = context.socket(ZMQ.ROUTER);
+			main_loop.polled_items.register(router, ZMQ.Poller.POLLIN);
+			if ((worker_loops == null) && (peer_scheduler != null))
+			{
+				// The scheduled requests come back to the main event loop, as to a single worker
+				connectToWorkerBackend(main_loop, createWorkerBackend());
+			}
+			else if (worker_loops == null)
+			{
+				main_loop.request_socket = router;
+			}
+		}
+		
+		router.bind(addr);
+	}
+	
+	// The dealer through which the main event loop passes requests on to the loops handling them, and gets their replies
+	private String createWorkerBackend()
+	{
+		String backend_addr = "inproc://commmanager-workers-" + next_instance_id.incrementAndGet();
+		worker_backend = context.socket(ZMQ.DEALER);
+		// The requests passed on are already limited by the concurrency limit, and sending must never block the main event loop
+		worker_backend.setSndHWM(0);
+		worker_backend.bind(backend_addr);
+		main_loop.polled_items.register(worker_backend, ZMQ.Poller.POLLIN);
+		return backend_addr;
+	}
+	
+	private void connectToWorkerBackend(EventLoop event_loop, String backend_addr)
+	{
+		event_loop.request_socket = context.socket(ZMQ.DEALER);
+		event_loop.request_socket.setRcvHWM(0);
+		event_loop.request_socket.connect(backend_addr);
+		event_loop.polled_items.register(event_loop.request_socket, ZMQ.Poller.POLLIN);
+	}
+	
+	/**
+	 * Binds the router to a specific address, and handles its requests on several worker threads, each running an event loop of its own.
+	 * The main event loop proxies the requests from the router to the workers (whichever is next in turn), and their replies back. The workers
+	 * handle the requests with the handlers set when the CommManager starts running, and their handlers run on the worker thread by default.
+	 * NOTE: The workers are created by the first call. Requests can't be handled both by workers and by the main event loop, so this can't be
+	 * called after listenOn without workers
+	 * @param addr - Address to bind
+	 * @param workers - Amount of worker threads
+	 */
+	public void listenOn(String addr, int workers)
+	{
+		if (workers < 1)
+		{
+			throw new IllegalArgumentException("There must be at least one worker");
+		}
+		
+		if (worker_loops == null)
+		{
+			if (router != null)
+			{
+				throw new IllegalStateException("Requests are already handled by the main event loop");
+			}
+			
+			String backend_addr = createWorkerBackend();
+			worker_loops = new EventLoop[workers];
+			for (int i = 0; i < workers; i++)
+			{
+				worker_loops[i] = new EventLoop();
+				connectToWorkerBackend(worker_loops[i], backend_addr);
+			}
+		}
+		
+		listenOn(addr);
+	}
+	
+	/**
+	 * Binds the router to a specific address, and sets its list of handlers for different messages it may receive
+	 * @param addr - Address to bind
+	 * @param handlers - Map of request message types to their matching handlers
+	 */
+	public void listenOn(String addr, HashMap<Descriptor, MessageHandler> handlers)
+	{
+		listenOn(addr);
+		setRequestHandler(handlers);
+	}
+	
+	/**
+	 * Set a MessageHandler for a specific type of request message. If a handler for this type already exists, this method will overwrite it
+	 * @param message_descriptor - Request message type we want to set a handler for
+	 * @param handler - The handler for this type
+	 */
+	public void setRequestHandler(Descriptor message_descriptor, MessageHandler handler)
+	{
+		router_message_handlers.put(message_descriptor, handler);
+	}
+	
+	/**
+	 * Set a full list of handlers for all request types. Will overwrite and previous handlers (or delete them if no new handler is set)
+	 * @param handlers
+	 */
+	public void setRequestHandler(HashMap<Descriptor, MessageHandler> handlers)
+	{
+		router_message_handlers = handlers;
+	}
+	
+	/**
+	 * Bind a message type to the executor its handlers will run on. This applies to request, subscription and reply handlers of this type.
+	 * Use HandlerExecutors.inline() to run on the poller thread, a shared pool, or a dedicated pool per type (bulkhead).
+	 * NOTE: Executors should be set before the CommManager starts running.
+	 * @param message_descriptor - Message type we want to set an executor for
+	 * @param executor - The executor to run its handlers on. null reverts to the default executor
+	 */
+	public void setHandlerExecutor(Descriptor message_descriptor, Executor executor)
+	{
+		if (executor != null)
+		{
+			handler_executors.put(message_descriptor, executor);
+		}
+		else
+		{
+			handler_executors.remove(message_descriptor);
+		}
+	}
+	
+	/**
+	 * Handle a message type in order per key, while different keys are handled in parallel. For example, to never reorder updates of
+	 * the same entity: setOrderedHandlerExecutor(AddEntity.getDescriptor(), striped_executor, MessageKeyExtractors.field(AddEntity.getDescriptor(), "entity.id"))
+	 * The same StripedExecutor can be shared by several types, in which case equal keys of different types are also ordered between them.
+	 * @param message_descriptor - Message type we want to set an executor for
+	 * @param executor - The striped executor to run its handlers on
+	 * @param key_extractor - Extracts the ordering key of a message. null orders requests per peer, and other messages per type
+	 */
+	public void setOrderedHandlerExecutor(Descriptor message_descriptor, StripedExecutor executor, MessageKeyExtractor key_extractor)
+	{
+		setHandlerExecutor(message_descriptor, executor);
+		
+		if (key_extractor != null)
+		{
+			handler_key_extractors.put(message_descriptor, key_extractor);
+		}
+		else
+		{
+			handler_key_extractors.remove(message_descriptor);
+		}
+	}
+	
+	/**
+	 * Opt-in mode where every inbound request and subscription message is handled on its own virtual thread (Java 21 or later, see
+	 * HandlerExecutors.virtualThreadPerTask). Meant for handlers which block on downstream I/O. Types bound to their own executor keep it,
+	 * and reply handlers still run on the default executor. reply() is safe to call from the virtual threads.
+	 * @param enabled - Whether to run inbound handlers on virtual threads
+	 */
+	public void setVirtualThreadDispatch(boolean enabled)
+	{
+		if (enabled && (virtual_thread_executor == null))
+		{
+			virtual_thread_executor = HandlerExecutors.virtualThreadPerTask();
+		}
+		else if (!enabled && (virtual_thread_executor != null))
+		{
+			virtual_thread_executor.shutdown();
+			virtual_thread_executor = null;
+		}
+	}
+	
+	/**
+	 * Set the executor for message types which weren't bound to one by setHandlerExecutor. Initially this is HandlerExecutors.inline().
+	 * @param executor - The default executor to run handlers on
+	 */
+	public void setDefaultHandlerExecutor(Executor executor)
+	{
+		default_handler_executor = (executor != null) ? executor : HandlerExecutors.inline();
+	}
+
+	/**
+	 * Limit the requests this service handles at once. A request over the limit is rejected right away with a Busy reply, instead of waiting
+	 * behind the others for longer than its requester waits - so overload shows as quick rejections, which the requester may retry elsewhere,
+	 * rather than as ever growing latency. The requester sees a Busy reply as a RejectedExecutionException (requestAsync and requestSync),
+	 * or through the onBusy of its timeout handler.
+	 * A request counts from its receipt until its handler returns, so the limit matters for handlers running on executors, whose queued
+	 * requests count too. With workers, requests are admitted before they're passed to a worker.
+	 * NOTE: Should be set before running the CommManager. Requests in the original framing (see setLegacyFraming) get no Busy reply, so
+	 * rejected ones are dropped
+	 * @param max_in_flight - Most requests handled at once, or 0 for no limit
+	 */
+	public void setMaxInFlightRequests(int max_in_flight)
+	{
+		concurrency_limit = (max_in_flight > 0) ? new ConcurrencyLimit(max_in_flight) : null;
+	}
+	
+	/**
+	 * Limit the requests this service handles at once, by a limit which adapts to the latency of the requests (AIMD): it grows slowly while
+	 * requests are handled within the target latency, and shrinks by a tenth whenever one takes longer. Otherwise as setMaxInFlightRequests
+	 * NOTE: Should be set before running the CommManager
+	 * @param min_in_flight - The lowest the limit may get
+	 * @param max_in_flight - The highest the limit may get, which is also where it starts
+	 * @param target_latency - Milliseconds a request may take, from its receipt until its handler returns. With workers or fair scheduling it is
+	 * received by the main event loop, so the time it waits for a worker, or in its peer queue, counts too
+	 */
+	public void setAdaptiveInFlightLimit(int min_in_flight, int max_in_flight, long target_latency)
+	{
+		if (target_latency <= 0)
+		{
+			throw new IllegalArgumentException("The target latency must be positive");
+		}
+		concurrency_limit = new ConcurrencyLimit(min_in_flight, max_in_flight, target_latency);
+	}
+	
+	/**
+	 * Schedule the requests fairly between the peers sending them, so a peer flooding requests can't starve the others. The main event loop
+	 * queues the requests of each peer separately, and passes them on to be handled by deficit round robin over their size in bytes, while
+	 * the in-flight limit allows (2 per handling loop, unless set by setMaxInFlightRequests or setAdaptiveInFlightLimit). Requests over the
+	 * limit wait in the queues rather than being rejected - only a request which finds the queue of its peer full gets a Busy reply.
+	 * A peer is a client which set its client id (see setClientId), or otherwise a single connection.
+	 * NOTE: Should be set before listenOn
+	 * @param max_queue_depth - Most requests waiting per peer
+	 */
+	public void setFairPeerScheduling(int max_queue_depth)
+	{
+		if (router != null)
+		{
+			throw new IllegalStateException("Fair scheduling must be set before listenOn");
+		}
+		peer_scheduler = new PeerScheduler(max_queue_depth);
+		scheduled_frames = new ArrayList<byte[]>();
+	}
+	
+	/**
+	 * Give a client a larger share of the service under fair scheduling: per turn it may send weight times as many bytes as a client of
+	 * weight 1
+	 * NOTE: Should be set before running the CommManager, after setFairPeerScheduling
+	 * @param client_id - Client id of the peer (see setClientId)
+	 * @param weight - 1 by default
+	 */
+	public void setPeerWeight(String client_id, int weight)
+	{
+		getPeerScheduler().setWeight(client_id, weight);
 	}
-	private PriorityBlockingQueue<RequestTimeoutMark> request_timeouts;
-	
-	// Each type that is ever parsed is dynamically mapped to its appropriate parser method
-	private HashMap<String, Method> type_parsers;
-
 	
 	/**
-	 * Constructs a PubSubManager
+	 * Cap the rate of the requests of a client under fair scheduling, by a token bucket. Its requests over the rate wait in its queue (and are
+	 * rejected once it's full), even while the service is idle
+	 * NOTE: Should be set before running the CommManager, after setFairPeerScheduling
+	 * @param client_id - Client id of the peer (see setClientId)
+	 * @param requests_per_second - Sustained rate of requests
+	 * @param burst - Requests the client may send at once after being idle
 	 */
-	public CommManager()
+	public void setPeerRateLimit(String client_id, double requests_per_second, int burst)
 	{
-		context = ZMQ.context(1);
-		subscriber_message_handlers = new HashMap<Descriptor, MessageHandler>();
-		router_message_handlers = new HashMap<Descriptor, MessageHandler>();
-		dealers_message_handlers = new HashMap<ZMQ.Socket, HashMap<Integer, HashMap<Descriptor, MessageHandler>>>();
-		type_parsers = new HashMap<String, Method>();
-		dealers = new HashMap<String, ZMQ.Socket>();
-		polled_items = new ZMQ.Poller(2);
-		next_request_id = 0;
-		request_id_lock_object = new Object();
-		request_timeouts = new PriorityBlockingQueue<RequestTimeoutMark>();
+		getPeerScheduler().setRateLimit(client_id, requests_per_second, burst);
 	}
 	
 	/**
-	 * Closes socket, and ends context.
+	 * May be called from any thread while running
+	 * @return Amount of requests waiting under fair scheduling, per peer: by client id, or by connection id (in hex) for peers without one.
+	 * Idle peers without a rate limit aren't listed. Empty without fair scheduling
 	 */
-	public void close()
+	public Map<String, Integer> getPeerQueueDepths()
 	{
-		if (publisher != null)
-		{
-			publisher.close();
-		}
-		
-		if (subscriber != null)
+		return (peer_scheduler != null) ? peer_scheduler.getQueueDepths() : new HashMap<String, Integer>();
+	}
+	
+	private PeerScheduler getPeerScheduler()
+	{
+		if (peer_scheduler == null)
 		{
-			subscriber.close();
+			throw new IllegalStateException("Fair scheduling isn't set");
 		}
-		
-		if (router != null)
+		return peer_scheduler;
+	}
+	
+	/**
+	 * Identify this CommManager to the services it sends requests to, as the identity of its dealers. Services with fair scheduling queue
+	 * the requests of all the connections of a client together, and apply its weight and rate limit (see setFairPeerScheduling).
+	 * NOTE: Should be set before sending the first request
+	 * @param client_id - Must not contain ':', and not start with a 0 character
+	 */
+	public void setClientId(String client_id)
+	{
+		if (client_id.isEmpty() || (client_id.charAt(0) == 0) || (client_id.indexOf(PeerScheduler.CLIENT_ID_SEPARATOR) >= 0))
 		{
-			router.close();
+			throw new IllegalArgumentException("Invalid client id " + client_id);
 		}
-		
-		for (ZMQ.Socket dealer : dealers.values())
+		this.client_id = client_id;
+	}
+
+	/**
+	 * Open several dealers (i.e. connections) to each address requests are sent to. Each request goes on the dealer with the fewest requests
+	 * waiting for a reply, so one slow request doesn't delay the requests queued behind it on the same connection.
+	 * NOTE: Should be set before sending the first request
+	 * @param dealers - Amount of dealers per address, 1 by default
+	 */
+	public void setDealersPerAddress(int dealers)
+	{
+		if (dealers < 1)
 		{
-			dealer.close();
+			throw new IllegalArgumentException("There must be at least one dealer per address");
 		}
-		
-		context.term();
+		dealers_per_address = dealers;
 	}
-	
-	public void run()
+
+	/**
+	 * May be called from any thread, also while running
+	 * @return The metrics of this CommManager: messages and bytes per type, latency histograms, and counts of what went wrong
+	 */
+	public CommMetrics getMetrics()
 	{
-        //  Process messages from all sockets
-        while (!Thread.currentThread ().isInterrupted ()) {
-        	
-        	// Poll for receiving a message
-            polled_items.poll(200);
-            
-            int item_index;
-            ZMQ.Socket socket;
-            int size = polled_items.getSize();
-            
-            // Find out which socket receives the message
-            for (item_index = 0; item_index < size; item_index++)
-            {
-            	if (polled_items.pollin(item_index))
-            	{
-            		byte[] peer_id = null;
-            		HashMap<Descriptor, MessageHandler> message_handlers = null;
-            		int request_id = -1;
-            		
-	            	socket = polled_items.getSocket(item_index);
-	            	
-	            	if (socket == router)
-	            	{
-	            		// Get the peer id, which is the first part of the message received by a router socket
-	            		peer_id = router.recv();
-	            		byte[] request_id_bytes = socket.recv();
-	            		request_id = ByteBuffer.wrap(request_id_bytes).getInt();
-	            		message_handlers = router_message_handlers;
-	            	}
-	            	else if (socket == subscriber)
-	            	{
-	            		message_handlers = subscriber_message_handlers;
-	            	}
-	            	else
-	            	{
-	            		// Socket is one of the dealers
-	            		
-	            		byte[] request_id_bytes = socket.recv();
-	            		request_id = ByteBuffer.wrap(request_id_bytes).getInt();
-	            		
-	            		HashMap<Integer, HashMap<Descriptor, MessageHandler>> requests_message_handlers = dealers_message_handlers.get(socket);
-	            		
-	            		if (requests_message_handlers.containsKey(request_id))
-	            		{
-	            			message_handlers = requests_message_handlers.get(request_id);
-	            			requests_message_handlers.put(request_id, null); // Null means that a reply was received
-	            		}
-	            		else
-	            		{
-	            			// This is a reply to an unexpected request (probably expired)
-	            			System.out.println("No such request");
-	            		}
-	            	}
-	            	  
-	            	try
-	            	{
-	            		recvAndHandlePayload(socket, peer_id, request_id, message_handlers);
-	            	}
-	            	catch (Exception ex)
-	            	{
-	            		
-	            	}
-            	}
-            	
-            	//checkRequestTimeouts();
-            }
-        }	
+		return metrics;
 	}
-
-	private void recvAndHandlePayload(ZMQ.Socket socket, byte[] peer_id, int request_id, HashMap<Descriptor, MessageHandler> message_handlers)
-			throws InvalidProtocolBufferException, InvocationTargetException,
-			IllegalAccessException, ClassNotFoundException 
+	
+	/**
+	 * Export the metrics through JMX, in the platform MBean server, as com.wispear.comm:type=CommManager,name=(name). close() unregisters them
+	 * @param name - Tells this CommManager apart from others in the same JVM
+	 * @throws IllegalStateException - If the MBean can't be registered, e.g. the name is taken
+	 */
+	public void registerMBean(String name)
 	{
-		GeneratedMessage message = recv(socket);
-		
-		// Find the appropriatae MessageHandler for this type
-		Descriptor message_type = message.getDescriptorForType();
-		if (message_handlers.containsKey(message_type))
+		try
 		{
-			message_handlers.get(message_type).handleMessage(message, peer_id, request_id);
-			
-			/*
-			 *  Possiblity: Make it so that the handler runs asynchronously on another thread
-			 *  In the current state, incoming message handling is queued. Can pretty easily make it run on thread pool
-			 *  It is a question of whether the communication layer should handle the asynchronous handling implicitly,
-			 *  or the upper layers explicitly. Probably would like to make it configurable in the future.
-			*/
+			ObjectName mbean_name = new ObjectName("com.wispear.comm:type=CommManager,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, mbean_name);
+			metrics_mbean_name = mbean_name;
 		}
-		else
+		catch (JMException ex)
 		{
-			// TODO: Throw proper exception
-			System.out.println("No message handler defined for this message type");
+			throw new IllegalStateException("Can't register the metrics MBean " + name, ex);
 		}
 	}
 	
-	private void checkRequestTimeouts()
+	/**
+	 * Drain several messages from each ready socket per poll, by non-blocking receives, instead of one message per poll. Under load this
+	 * saves a poll per message. The batch adapts to the backlog: it doubles while a socket still has messages waiting after a full batch,
+	 * up to max_batch, and halves once the sockets keep up. getMessagesPerWakeup shows how many messages each poll pays for.
+	 * NOTE: Should be set before running the CommManager
+	 * @param max_batch - Most messages received from a socket per poll. 1 by default, for one message per poll
+	 */
+	public void setReceiveBatch(int max_batch)
 	{
-		long current_timestamp = System.currentTimeMillis();
-		RequestTimeoutMark next_timeout = request_timeouts.peek();
-		while ((next_timeout != null) && (next_timeout.timeout < current_timestamp))
+		if (max_batch < 1)
 		{
-			request_timeouts.poll();
-			System.out.println();
+			throw new IllegalArgumentException("The batch must be at least 1");
 		}
+		max_receive_batch = max_batch;
 	}
 	
 	/**
-	 * Binds the publishing to a specific address.
-	 * @param addr	Address to bind for publishing.
+	 * Poll without blocking, for the lowest latency: between polls which find nothing, an event loop spins, then yields, then parks for
+	 * growing periods (see BackoffIdler), and any message sets it spinning again. A blocking poll costs tens of microseconds to wake up from,
+	 * which busy polling saves - at the cost of a core per event loop (and worker) while the messages keep coming.
+	 * NOTE: Should be set before running the CommManager
+	 * @param max_spins - Empty polls repeated right away, e.g. 10000
+	 * @param max_yields - Empty polls after yielding the core, once done spinning, e.g. 100
+	 * @param max_park - Longest park in nanoseconds, once done yielding. Messages wait up to this long for an idle event loop
 	 */
-	public void bindPublisher(String addr)
+	public void setBusyPolling(int max_spins, int max_yields, long max_park)
 	{
-		publisher = context.socket(ZMQ.PUB);
-		publisher.bind(addr);
+		// Only to validate the settings now - each event loop creates its own
+		new BackoffIdler(max_spins, max_yields, max_park);
+		busy_poll_spins = max_spins;
+		busy_poll_yields = max_yields;
+		busy_poll_max_park = max_park;
 	}
 	
 	/**
-	 * Binds the router to a specific address.
-	 * @param addr - Address to bind
+	 * Create the threads of the event loops and the workers by this factory, e.g. to pin each to a core of its own, as busy polling
+	 * needs. The main event loop runs on the thread calling run(), which the caller pins itself.
+	 * NOTE: Should be set before running the CommManager
+	 * @param thread_factory - null for the default daemon threads
 	 */
-	public void listenOn(String addr)
+	public void setEventLoopThreadFactory(ThreadFactory thread_factory)
 	{
-		if (router == null)
+		event_loop_thread_factory = thread_factory;
+	}
+	
+	/**
+	 * May be called from any thread while running
+	 * @return Average amount of messages received per poll which received any, over all the event loops (and workers)
+	 */
+	public double getMessagesPerWakeup()
+	{
+		long wakeups = 0;
+		long received_messages = 0;
+		ArrayList<EventLoop> all_loops = new ArrayList<EventLoop>(Arrays.asList(event_loops));
+		if (worker_loops != null)
 		{
-			router = context.socket(ZMQ.ROUTER);
-			polled_items.register(router, ZMQ.Poller.POLLIN);
+			all_loops.addAll(Arrays.asList(worker_loops));
 		}
-		
-		router.bind(addr);
+		for (EventLoop event_loop : all_loops)
+		{
+			wakeups += event_loop.wakeups;
+			received_messages += event_loop.received_messages;
+		}
+		return (wakeups > 0) ? (double) received_messages / wakeups : 0;
 	}
-	
+
 	/**
-	 * Binds the router to a specific address, and sets its list of handlers for different messages it may receive
-	 * @param addr - Address to bind
-	 * @param handlers - Map of request message types to their matching handlers
+	 * Define a service group: replicas of a service behind one name. The name may then be used instead of an address in any of the request
+	 * methods, and each request goes to one of the replicas. The replica is chosen by the power of two choices, on the latency of its recent
+	 * replies and its outstanding requests - so slower replicas automatically get less traffic (see ServiceGroup).
+	 * A sharded service is requested through requestByKey instead, which sends each key to the replica owning it.
+	 * May be called while running, e.g. when replicas join or leave. The replicas which stay keep their latency estimates, and keep their keys.
+	 * @param name - Name of the group. Replaces a group of the same name
+	 * @param addrs - Addresses of the replicas
 	 */
-	public void listenOn(String addr, HashMap<Descriptor, MessageHandler> handlers)
+	public void setServiceGroup(String name, List<String> addrs)
 	{
-		listenOn(addr);
-		setRequestHandler(handlers);
+		synchronized (service_groups)
+		{
+			service_groups.put(name, new ServiceGroup(name, addrs, service_groups.get(name)));
+		}
 	}
 	
 	/**
-	 * Set a MessageHandler for a specific type of request message. If a handler for this type already exists, this method will overwrite it
-	 * @param message_descriptor - Request message type we want to set a handler for
-	 * @param handler - The handler for this type
+	 * Add a replica to a service group, creating the group if there is none. Only the keys the new replica takes over move to it
+	 * @param name - Name of the group
+	 * @param addr - Address of the replica
 	 */
-	public void setRequestHandler(Descriptor message_descriptor, MessageHandler handler)
+	public void addServiceEndpoint(String name, String addr)
 	{
-		router_message_handlers.put(message_descriptor, handler);
+		synchronized (service_groups)
+		{
+			ServiceGroup service_group = service_groups.get(name);
+			List<String> addrs = (service_group != null) ? service_group.getAddresses() : new ArrayList<String>();
+			if (!addrs.contains(addr))
+			{
+				addrs.add(addr);
+				setServiceGroup(name, addrs);
+			}
+		}
 	}
 	
 	/**
-	 * Set a full list of handlers for all request types. Will overwrite and previous handlers (or delete them if no new handler is set)
-	 * @param handlers
+	 * Remove a replica from a service group. Only its keys move, spread over the remaining replicas. Requests already sent to it still
+	 * get its reply. The group is removed with its last replica
+	 * @param name - Name of the group
+	 * @param addr - Address of the replica
 	 */
-	public void setRequestHandler(HashMap<Descriptor, MessageHandler> handlers)
+	public void removeServiceEndpoint(String name, String addr)
 	{
-		router_message_handlers = handlers;
+		synchronized (service_groups)
+		{
+			ServiceGroup service_group = service_groups.get(name);
+			if (service_group == null)
+			{
+				return;
+			}
+			
+			List<String> addrs = service_group.getAddresses();
+			if (addrs.remove(addr))
+			{
+				if (addrs.isEmpty())
+				{
+					service_groups.remove(name);
+				}
+				else
+				{
+					setServiceGroup(name, addrs);
+				}
+			}
+		}
 	}
-	
+
+	/**
+	 * Send in the original framing of the CommManager, where the request id, the type name and the message are separate frames, instead of
+	 * a header frame with a type id (see Envelope). Needed to talk to peers running the original CommManager. The original framing has no
+	 * timeouts, batches (publishBatch sends the messages one by one) or Busy replies.
+	 * Receiving always accepts both framings, and subscriptions match publications of both, so a system can be migrated by first deploying
+	 * this CommManager with legacy framing everywhere, and then turning it off one peer at a time.
+	 * NOTE: Should be set before running the CommManager
+	 * @param enabled - Whether to send in the old framing
+	 */
+	public void setLegacyFraming(boolean enabled)
+	{
+		legacy_framing = enabled;
+	}
+
 	/**
 	 * Connect the subscriber to a specific address.
 	 * NOTE: This call alone dosen't actually subscribe to a message, so it is not enough to receive messages.
@@ -296,7 +1993,7 @@ public class CommManager implements Runnable {
 		if (subscriber == null)
 		{
 			subscriber = context.socket(ZMQ.SUB);
-			polled_items.register(subscriber, ZMQ.Poller.POLLIN);
+			main_loop.polled_items.register(subscriber, ZMQ.Poller.POLLIN);
 		}
 		
 		subscriber.connect(addr);
@@ -313,14 +2010,17 @@ public class CommManager implements Runnable {
 		if (subscriber == null)
 		{
 			subscriber = context.socket(ZMQ.SUB);
-			polled_items.register(subscriber, ZMQ.Poller.POLLIN);
+			main_loop.polled_items.register(subscriber, ZMQ.Poller.POLLIN);
 		}
 		
 		// Set the handler for when receiving this message type. Override if handler already exists
 		subscriber_message_handlers.put(message_descriptor, handler);
 		
-		String message_type = message_descriptor.getName();
-		subscriber.subscribe(message_type.getBytes());
+		// Every header starts with the type id, and the filter compares prefixes, so it matches this exact type. Publications in the original
+		// framing start with the type name instead (the filter also passes types whose names start with this one, which find no handler)
+		TypeRegistry.Entry message_type = type_registry.getEntry(message_descriptor);
+		subscriber.subscribe(message_type.header);
+		subscriber.subscribe(message_type.legacy_name);
 	}
 	
 	/**
@@ -338,60 +2038,44 @@ public class CommManager implements Runnable {
 	
 	/**
 	 * Perform a request from another service. This assumes a reply will be returned, so pass a MessageHandler for the reply (callback pattern)
-	 * TODO: Add support for timeout on the reply (perhaps an exception?)
-	 * @param addr - The address to send the request to
+	 * May be called from any thread. The request is sent by the poller thread, so it is only sent once the CommManager is running.
+	 * @param addr - The address to send the request to, or the name of a service group
 	 * @param message - The request message
 	 * @param reply_message_handlers - The list of handlers for different possible reply messages
 	 * @param timeout - Timeout in milliseconds. Value of 0 means no timeout for this request
+	 * @param timeout_handler - Called if no reply was received within the timeout. May be null
 	 */
-	public void request(String addr, GeneratedMessage message, HashMap<Descriptor, MessageHandler> reply_message_handlers, long timeout)
+	public void request(String addr, GeneratedMessage message, HashMap<Descriptor, MessageHandler> reply_message_handlers, long timeout,
+			RequestTimeoutHandler timeout_handler)
 	{
-		ZMQ.Socket dealer;
-		
-		int request_id;
-		synchronized (request_id_lock_object) {
-			// Must syncrhonize request id increment in case there are concurrent calls to the method
-			request_id = ++next_request_id;
-		}
-		
-		if (!dealers.containsKey(addr)) {
-			dealer = context.socket(ZMQ.DEALER);
-			dealers.put(addr, dealer);
-			HashMap<Integer, HashMap<Descriptor, MessageHandler>> requests_to_handlers = new HashMap<Integer, HashMap<Descriptor, MessageHandler>>();
-			requests_to_handlers.put(request_id, reply_message_handlers);
-			dealers_message_handlers.put(dealer, requests_to_handlers);
-			polled_items.register(dealer, ZMQ.Poller.POLLIN);
-			dealer.connect(addr);
+		if ((reply_message_handlers != null) && (reply_message_handlers.size() == 1))
+		{
+			// Single reply type - take the fast path
+			Map.Entry<Descriptor, MessageHandler> entry = reply_message_handlers.entrySet().iterator().next();
+			submitRequest(addr, message, new PendingRequest(entry.getKey(), entry.getValue(), null, timeout_handler), timeout);
 		}
 		else
 		{
-			dealer = dealers.get(addr);
-			
-			// Check to see if the list of handlers is different from the one stored in memory. If so - update it
-			// If the caller doesn't want to update the list of handlers, he can pass null as the value
-			// TODO: Later, for the sake of performance, can separate the creation of dealer sockets for request-reply pattern from the sending itself
-			if ((reply_message_handlers != null) && (!reply_message_handlers.equals(dealers_message_handlers.get(dealer))))
-			{
-				dealers_message_handlers.get(dealer).put(request_id, reply_message_handlers);
-			}
+			boolean expects_reply = (reply_message_handlers != null) && !reply_message_handlers.isEmpty();
+			submitRequest(addr, message, expects_reply ? new PendingRequest(null, null, reply_message_handlers, timeout_handler) : null, timeout);
 		}
-		
-		// Get bytes of request id
-		byte[] request_id_bytes = ByteBuffer.allocate(REQUEST_ID_LENGTH).putInt(next_request_id).array();
-		
-		// Send request id
-		dealer.send(request_id_bytes, ZMQ.SNDMORE);
-		// Send payload
-		send(dealer, message);
-		
-		// Set timeout value after which the reply is invalid
-		RequestTimeoutMark timeout_mark = new RequestTimeoutMark(System.currentTimeMillis() + timeout, request_id);
-		request_timeouts.add(timeout_mark);
+	}
+	
+	/**
+	 * Syntactic sugar for request with a timeout, but no timeout handler
+	 * @param addr - The address to send the request to, or the name of a service group
+	 * @param message - The request message
+	 * @param reply_message_handlers - The list of handlers for different possible reply messages
+	 * @param timeout - Timeout in milliseconds. Value of 0 means no timeout for this request
+	 */
+	public void request(String addr, GeneratedMessage message, HashMap<Descriptor, MessageHandler> reply_message_handlers, long timeout)
+	{
+		request(addr, message, reply_message_handlers, timeout, null);
 	}
 	
 	/**
 	 * Syntactic sugar for request with no timeout set
-	 * @param addr - The address to send the request to
+	 * @param addr - The address to send the request to, or the name of a service group
 	 * @param message - The request message
 	 * @param reply_message_handlers - The list of handlers for different possible reply messages
 	 */
@@ -402,10 +2086,25 @@ public class CommManager implements Runnable {
 	
 	
 	/**
-	 * Syntactic sugar for the previous method. Most requests will have only one possible reply message type, so this method saves the caller
-	 * the overhead of creating the hashtable himself.
-	 * Also - if this is a request which has no reply, pass null at both last parameters
-	 * @param addr - The address to send the request to
+	 * Variation of the previous method. Most requests will have only one possible reply message type, so this method saves the caller
+	 * the overhead of creating the hashtable himself (and is the fastest way to perform a request).
+	 * Also - if this is a request which has no reply, pass null at both reply parameters
+	 * @param addr - The address to send the request to, or the name of a service group
+	 * @param message - The request message
+	 * @param reply_descriptor - Type of the expected reply message
+	 * @param reply_handler - Handler for the reply message
+	 * @param timeout - Timeout in milliseconds. Value of 0 means no timeout for this request
+	 * @param timeout_handler - Called if no reply was received within the timeout. May be null
+	 */
+	public void request(String addr, GeneratedMessage message, Descriptor reply_descriptor, MessageHandler reply_handler, int timeout,
+			RequestTimeoutHandler timeout_handler)
+	{
+		submitRequest(addr, message, (reply_descriptor != null) ? new PendingRequest(reply_descriptor, reply_handler, null, timeout_handler) : null, timeout);
+	}
+	
+	/**
+	 * Syntactic sugar for request with single handler and a timeout, but no timeout handler
+	 * @param addr - The address to send the request to, or the name of a service group
 	 * @param message - The request message
 	 * @param reply_descriptor - Type of the expected reply message
 	 * @param reply_handler - Handler for the reply message
@@ -413,17 +2112,12 @@ public class CommManager implements Runnable {
 	 */
 	public void request(String addr, GeneratedMessage message, Descriptor reply_descriptor, MessageHandler reply_handler, int timeout)
 	{
-		HashMap<Descriptor, MessageHandler> handler_hashtable = new HashMap<Descriptor, MessageHandler>(1);
-		if (reply_descriptor != null)
-		{
-			handler_hashtable.put(reply_descriptor, reply_handler);
-		}
-		request(addr, message, handler_hashtable, timeout);
+		request(addr, message, reply_descriptor, reply_handler, timeout, null);
 	}
 	
 	/**
 	 * Syntactic sugar for request with single handler and no timeout set
-	 * @param addr - The address to send the request to
+	 * @param addr - The address to send the request to, or the name of a service group
 	 * @param message - The request message
 	 * @param reply_descriptor - Type of the expected reply message
 	 * @param reply_handler - Handler for the reply message
@@ -434,127 +2128,236 @@ public class CommManager implements Runnable {
 	}
 	
 	/**
-	 * Sends a reply to answer another service's request
-	 * NOTE: Should only be called from the MessageHandler of a request message - i.e., when another service performs a request on this CommManager
-	 * @param message - Reply message
-	 * @param peer_id - id of the peer to let the router socket know where to send the message
-	 * @param request_id - id of the request we are replying to. Simply need to send it as well in order for the client to match the reply to request
+	 * Perform a request from another service, and get its reply as a future. The future is completed by the poller thread, so stages
+	 * chained on it without an executor (e.g. thenApply rather than thenApplyAsync) run on the poller thread, and should be short.
+	 * If the request times out, the future completes exceptionally with a TimeoutException, and if the service rejects it as busy, with a
+	 * RejectedExecutionException. Cancelling the future (or completing it) gives up on the request, and a late reply is dropped.
+	 * Example: CompletableFuture&lt;Entity&gt; entity = comm.requestAsync(addr, req_entity, Entity.getDescriptor(), 1000);
+	 * @param addr - The address to send the request to, or the name of a service group
+	 * @param message - The request message
+	 * @param reply_descriptor - Type of the expected reply message. A reply of another type completes the future exceptionally
+	 * @param timeout - Timeout in milliseconds. Value of 0 means no timeout for this request
+	 * @return Future of the reply message
 	 */
-	public void reply(GeneratedMessage message, byte[] peer_id, int request_id)
+	@SuppressWarnings("unchecked")
+	public <T extends GeneratedMessage> CompletableFuture<T> requestAsync(String addr, GeneratedMessage message, Descriptor reply_descriptor, long timeout)
 	{
-		if (peer_id != null)
+		PendingRequest pending_request = new PendingRequest(reply_descriptor);
+		submitRequest(addr, message, pending_request, timeout);
+		return (CompletableFuture<T>) pending_request.reply_future;
+	}
+	
+	/**
+	 * Perform a request from another service, and block until its reply arrives. The calling thread is parked while waiting.
+	 * NOTE: Must not be called from a handler running on a poller thread, as the poller may be the one receiving the reply
+	 * @param addr - The address to send the request to, or the name of a service group
+	 * @param message - The request message
+	 * @param reply_descriptor - Type of the expected reply message
+	 * @param timeout - Timeout in milliseconds. Value of 0 means waiting until the reply arrives
+	 * @return The reply message
+	 * @throws TimeoutException - If no reply was received within the timeout
+	 * @throws RejectedExecutionException - If the service rejected the request as busy (see setMaxInFlightRequests)
+	 * @throws InterruptedException - If the calling thread was interrupted while waiting
+	 */
+	public <T extends GeneratedMessage> T requestSync(String addr, GeneratedMessage message, Descriptor reply_descriptor, long timeout)
+			throws TimeoutException, InterruptedException
+	{
+		if (isEventLoopThread())
 		{
-			// First tell router which dealer to send the message
-			router.send(peer_id, ZMQ.SNDMORE);
-			byte[] request_id_bytes = ByteBuffer.allocate(REQUEST_ID_LENGTH).putInt(request_id).array();
-			router.send(request_id_bytes, ZMQ.SNDMORE);
-			send(router, message);
+			throw new IllegalStateException("requestSync would block a poller thread, which may be the one receiving its reply");
 		}
-		else
+		
+		CompletableFuture<T> reply_future = requestAsync(addr, message, reply_descriptor, timeout);
+		try
 		{
-			// TODO: Throw proper exception
-			System.out.println("No peer id passed");
+			return reply_future.get();
+		}
+		catch (ExecutionException ex)
+		{
+			if (ex.getCause() instanceof TimeoutException)
+			{
+				throw (TimeoutException) ex.getCause();
+			}
+			if (ex.getCause() instanceof RejectedExecutionException)
+			{
+				throw (RejectedExecutionException) ex.getCause();
+			}
+			throw new IllegalStateException(ex.getCause());
+		}
+		catch (InterruptedException ex)
+		{
+			reply_future.cancel(false);
+			throw ex;
 		}
 	}
 	
 	/**
-	 * Publish the message on the bus
-	 * @param message
+	 * Perform a request from a sharded service, at the replica which owns the key (e.g. the entity id of ReqEntity or AddEntity).
+	 * The replicas of the service group are placed on a consistent hash ring, so the replica of a key only changes when replicas join or
+	 * leave the group - and then only for the keys of those replicas (see setServiceGroup).
+	 * @param service_group - Name of the service group
+	 * @param key - Key of the request
+	 * @param message - The request message
+	 * @param reply_descriptor - Type of the expected reply message. null if this is a request which has no reply
+	 * @param reply_handler - Handler for the reply message
+	 * @param timeout - Timeout in milliseconds. Value of 0 means no timeout for this request
+	 * @param timeout_handler - Called if no reply was received within the timeout. May be null
 	 */
-	public void publish(GeneratedMessage message)
+	public void requestByKey(String service_group, long key, GeneratedMessage message, Descriptor reply_descriptor, MessageHandler reply_handler,
+			int timeout, RequestTimeoutHandler timeout_handler)
 	{
-		send(subscriber, message);
+		submitRequest(service_group, lookupReplica(service_group, key), message,
+				(reply_descriptor != null) ? new PendingRequest(reply_descriptor, reply_handler, null, timeout_handler) : null, timeout);
 	}
 	
 	/**
-	 * Send (publish) a message of one of the defined types
-	 * @param message	Message to serialze and send
+	 * Syntactic sugar for requestByKey with a timeout, but no timeout handler
+	 * @param service_group - Name of the service group
+	 * @param key - Key of the request
+	 * @param message - The request message
+	 * @param reply_descriptor - Type of the expected reply message
+	 * @param reply_handler - Handler for the reply message
+	 * @param timeout - Timeout in milliseconds. Value of 0 means no timeout for this request
 	 */
-	private void send(ZMQ.Socket socket, GeneratedMessage message)
+	public void requestByKey(String service_group, long key, GeneratedMessage message, Descriptor reply_descriptor, MessageHandler reply_handler,
+			int timeout)
 	{
-		// Sending is done as multi-part message
-		
-		// Send the message type in the first part. The subscription filter will only run on it
-		String message_type = message.getDescriptorForType().getName();
-		socket.send(message_type.getBytes(), ZMQ.SNDMORE);
-		
-		// Send the message bytes in teh second part
-		byte[] message_bytes = message.toByteArray();
-		socket.send(message_bytes);
+		requestByKey(service_group, key, message, reply_descriptor, reply_handler, timeout, null);
 	}
 	
-	
 	/**
-	 * Runs (in a blocking manner) until receiving a message of the type the manager has subscribed to.
-	 * @return The message, whose runtime type is as it was sent on the other side
-	 * @throws InvalidProtocolBufferException
-	 * @throws InvocationTargetException
-	 * @throws IllegalAccessException
-	 * @throws ClassNotFoundException
+	 * Perform a request from a sharded service, at the replica which owns the key, and get its reply as a future (see requestAsync)
+	 * @param service_group - Name of the service group
+	 * @param key - Key of the request
+	 * @param message - The request message
+	 * @param reply_descriptor - Type of the expected reply message. A reply of another type completes the future exceptionally
+	 * @param timeout - Timeout in milliseconds. Value of 0 means no timeout for this request
+	 * @return Future of the reply message
 	 */
-	private GeneratedMessage recv(ZMQ.Socket socket) throws InvalidProtocolBufferException, InvocationTargetException, IllegalAccessException, ClassNotFoundException
+	@SuppressWarnings("unchecked")
+	public <T extends GeneratedMessage> CompletableFuture<T> requestByKeyAsync(String service_group, long key, GeneratedMessage message,
+			Descriptor reply_descriptor, long timeout)
 	{
-		// Get first part of message which contains message type
-		byte[] message_type_bytes = socket.recv();
-		String message_type = new String(message_type_bytes);
-		
-		// Get message bytes, and parse according to type
-		byte[] message_bytes = socket.recv();
-		GeneratedMessage message = parse(message_type, message_bytes);
+		PendingRequest pending_request = new PendingRequest(reply_descriptor);
+		submitRequest(service_group, lookupReplica(service_group, key), message, pending_request, timeout);
+		return (CompletableFuture<T>) pending_request.reply_future;
+	}
 	
-		return message;
+	// The replica owning a key. The ring is immutable, so the lookup is done on the calling thread
+	private ServiceGroup.Replica lookupReplica(String service_group, long key)
+	{
+		ServiceGroup group = service_groups.get(service_group);
+		if (group == null)
+		{
+			throw new IllegalArgumentException("No service group " + service_group);
+		}
+		return group.lookup(key);
 	}
 	
+	// Sends the request on the thread of the event loop which owns the dealer. The timeout counts from now, even if the request waits in the mailbox
+	private void submitRequest(String addr, GeneratedMessage message, PendingRequest pending_request, long timeout)
+	{
+		submitRequest(addr, null, message, pending_request, timeout);
+	}
 	
-	// Parses the serialized protobuf bytes according to the stated type
-	private GeneratedMessage parse(String message_type, byte[] message_bytes) 
-			throws ClassNotFoundException, InvocationTargetException, IllegalAccessException
+	// A request with its replica already chosen is sent by the event loop of its service group, which keeps the statistics of the replica
+	private void submitRequest(String addr, ServiceGroup.Replica replica, GeneratedMessage message, PendingRequest pending_request, long timeout)
 	{
-		Method m = getParserMethod(message_type);
+		long deadline = (timeout > 0) ? System.currentTimeMillis() + timeout : 0;
+		EventLoop event_loop = getEventLoop(addr);
+		if (pending_request != null)
+		{
+			// Set before the request is queued, so a future cancelled right away already knows its event loop
+			pending_request.event_loop = event_loop;
+		}
 		
-		if (m != null)
+		if (event_loop.isLoopThread())
 		{
-			// Invoke the parser via reflection
-			return (GeneratedMessage) m.invoke(null, message_bytes);
+			event_loop.sendRequest(addr, replica, message, pending_request, deadline);
 		}
 		else
 		{
-			return null;
+			OutboundMessage outbound_message = new OutboundMessage(OutboundMessage.REQUEST, message);
+			outbound_message.addr = addr;
+			outbound_message.replica = replica;
+			outbound_message.pending_request = pending_request;
+			outbound_message.deadline = deadline;
+			event_loop.post(outbound_message);
 		}
 	}
 	
-	// Gets the appropriate parser method for this message type
-	// Note that the method is retrieved once via reflection, and then cached
-	private Method getParserMethod(String message_type) throws ClassNotFoundException
+	/**
+	 * Sends a reply to answer another service's request
+	 * NOTE: Should only be called from the MessageHandler of a request message - i.e., when another service performs a request on this CommManager
+	 * May be called from any thread - e.g. a handler running on an executor. The reply is then queued and sent by the poller thread.
+	 * @param message - Reply message
+	 * @param peer_id - id of the peer to let the router socket know where to send the message
+	 * @param request_id - id of the request we are replying to. Simply need to send it as well in order for the client to match the reply to request
+	 */
+	public void reply(GeneratedMessage message, byte[] peer_id, int request_id)
 	{
-		if (type_parsers.containsKey(message_type))
-		{
-			return type_parsers.get(message_type);
-		}
-		else
+		if (peer_id != null)
 		{
-			Method parser_method;
-			
-			// We use the fact that the message type as passed in the protobuf is derived from the class name
-			String full_classname = String.format("%s.%s$%s", this.getClass().getPackage().getName(), MESSAGES_CLASSNAME, message_type);
-			
-			try {
-				Class<?> c = Class.forName(full_classname);		
-				Class<?>[] parameter_types = {byte[].class};
-				parser_method = c.getMethod("parseFrom", parameter_types);
-			}
-			catch (ClassNotFoundException ex)
+			EventLoop reply_loop = getReplyLoop(peer_id);
+			if (reply_loop.isLoopThread())
 			{
-				System.out.println("No such class");
-				return null;
+				reply_loop.sendReply(message, peer_id, request_id);
 			}
-			catch (NoSuchMethodException ex) { 
-				System.out.println("No such method");
-				return null;
+			else
+			{
+				// The handler runs on an executor thread. Let the poller thread send it, since it owns the router socket
+				OutboundMessage outbound_message = new OutboundMessage(OutboundMessage.REPLY, message);
+				outbound_message.peer_id = peer_id;
+				outbound_message.request_id = request_id;
+				reply_loop.post(outbound_message);
 			}
-			
-			type_parsers.put(message_type, parser_method);
-			return parser_method;
+		}
+		else
+		{
+			// TODO: Throw proper exception
+			metrics.failed_sends.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * Publish the message on the bus. May be called from any thread
+	 * @param message
+	 */
+	public void publish(GeneratedMessage message)
+	{
+		if (main_loop.isLoopThread())
+		{
+			main_loop.send(publisher, message, false, 0, 0);
+		}
+		else
+		{
+			main_loop.post(new OutboundMessage(OutboundMessage.PUBLISH, message));
+		}
+	}
+	
+	/**
+	 * Publish a burst of messages on the bus at once. Consecutive messages of the same type are serialized together into one buffer, and sent
+	 * as a single batch envelope, so each run of messages costs one ZMQ message instead of one per message. Subscribers unbatch the envelope,
+	 * and handle each message as if it was published alone. As the envelope carries the type like a single message does, type subscriptions
+	 * still apply. May be called from any thread
+	 * @param messages - The messages to publish, in order. The list must not be modified after the call, as it may be sent later
+	 */
+	public void publishBatch(List<? extends GeneratedMessage> messages)
+	{
+		if (messages.isEmpty())
+		{
+			return;
+		}
+		
+		if (main_loop.isLoopThread())
+		{
+			main_loop.sendBatch(publisher, messages);
+		}
+		else
+		{
+			OutboundMessage outbound_message = new OutboundMessage(OutboundMessage.PUBLISH_BATCH, null);
+			outbound_message.batch = messages;
+			main_loop.post(outbound_message);
 		}
 	}
 }
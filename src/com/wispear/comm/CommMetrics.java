@@ -0,0 +1,236 @@
+package com.wispear.comm;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The metrics of a CommManager: counts and bytes of the messages sent and received per type, histograms of the handler time, the queue wait
+ * and the round trip of requests, gauges of the outstanding requests and the dealers, and counts of what went wrong (timeouts, rejections,
+ * malformed or unhandled messages).
+ * Recording is thread safe and allocation free - atomic counters, and per type counters found by the dense index the type registry gives each
+ * type. The values are pulled by the getters, each a snapshot of its own, and the same getters are exported through JMX
+ * (see CommManager.registerMBean).
+ */
+public class CommMetrics implements CommMetricsMXBean {
+
+	private static class TypeCounters
+	{
+		private final String name;
+		private final AtomicLong sent_messages = new AtomicLong();
+		private final AtomicLong sent_bytes = new AtomicLong();
+		private final AtomicLong received_messages = new AtomicLong();
+		private final AtomicLong received_bytes = new AtomicLong();
+
+		private TypeCounters(String name)
+		{
+			this.name = name;
+		}
+	}
+
+	private final TypeRegistry type_registry;
+
+	// Counters of each registered type, by its index in the registry. Grows (keeping the counters) when types are registered later
+	private volatile TypeCounters[] type_counters;
+
+	final LatencyHistogram handler_time;
+	final LatencyHistogram queue_wait;
+	final LatencyHistogram round_trip;
+
+	final AtomicInteger outstanding_requests;
+	final AtomicInteger dealers;
+
+	final AtomicLong timeouts;
+	final AtomicLong busy_replies;
+	final AtomicLong rejected_requests;
+	final AtomicLong unexpected_replies;
+	final AtomicLong malformed_messages;
+	final AtomicLong unhandled_messages;
+	final AtomicLong rejected_handler_tasks;
+	final AtomicLong failed_sends;
+
+	CommMetrics(TypeRegistry type_registry)
+	{
+		this.type_registry = type_registry;
+		type_counters = new TypeCounters[0];
+		handler_time = new LatencyHistogram();
+		queue_wait = new LatencyHistogram();
+		round_trip = new LatencyHistogram();
+		outstanding_requests = new AtomicInteger();
+		dealers = new AtomicInteger();
+		timeouts = new AtomicLong();
+		busy_replies = new AtomicLong();
+		rejected_requests = new AtomicLong();
+		unexpected_replies = new AtomicLong();
+		malformed_messages = new AtomicLong();
+		unhandled_messages = new AtomicLong();
+		rejected_handler_tasks = new AtomicLong();
+		failed_sends = new AtomicLong();
+	}
+
+	void messagesSent(TypeRegistry.Entry message_type, int messages, int bytes)
+	{
+		TypeCounters counters = getTypeCounters(message_type);
+		counters.sent_messages.addAndGet(messages);
+		counters.sent_bytes.addAndGet(bytes);
+	}
+
+	void messagesReceived(TypeRegistry.Entry message_type, int messages, int bytes)
+	{
+		TypeCounters counters = getTypeCounters(message_type);
+		counters.received_messages.addAndGet(messages);
+		counters.received_bytes.addAndGet(bytes);
+	}
+
+	@Override
+	public Map<String, Long> getSentMessages()
+	{
+		HashMap<String, Long> values = new HashMap<String, Long>();
+		for (TypeCounters counters : type_counters)
+		{
+			values.put(counters.name, counters.sent_messages.get());
+		}
+		return values;
+	}
+
+	@Override
+	public Map<String, Long> getSentBytes()
+	{
+		HashMap<String, Long> values = new HashMap<String, Long>();
+		for (TypeCounters counters : type_counters)
+		{
+			values.put(counters.name, counters.sent_bytes.get());
+		}
+		return values;
+	}
+
+	@Override
+	public Map<String, Long> getReceivedMessages()
+	{
+		HashMap<String, Long> values = new HashMap<String, Long>();
+		for (TypeCounters counters : type_counters)
+		{
+			values.put(counters.name, counters.received_messages.get());
+		}
+		return values;
+	}
+
+	@Override
+	public Map<String, Long> getReceivedBytes()
+	{
+		HashMap<String, Long> values = new HashMap<String, Long>();
+		for (TypeCounters counters : type_counters)
+		{
+			values.put(counters.name, counters.received_bytes.get());
+		}
+		return values;
+	}
+
+	@Override
+	public HistogramSnapshot getHandlerTime()
+	{
+		return handler_time.snapshot();
+	}
+
+	@Override
+	public HistogramSnapshot getQueueWait()
+	{
+		return queue_wait.snapshot();
+	}
+
+	@Override
+	public HistogramSnapshot getRoundTrip()
+	{
+		return round_trip.snapshot();
+	}
+
+	@Override
+	public int getOutstandingRequests()
+	{
+		return outstanding_requests.get();
+	}
+
+	@Override
+	public int getDealers()
+	{
+		return dealers.get();
+	}
+
+	@Override
+	public long getTimeouts()
+	{
+		return timeouts.get();
+	}
+
+	@Override
+	public long getBusyReplies()
+	{
+		return busy_replies.get();
+	}
+
+	@Override
+	public long getRejectedRequests()
+	{
+		return rejected_requests.get();
+	}
+
+	@Override
+	public long getUnexpectedReplies()
+	{
+		return unexpected_replies.get();
+	}
+
+	@Override
+	public long getMalformedMessages()
+	{
+		return malformed_messages.get();
+	}
+
+	@Override
+	public long getUnhandledMessages()
+	{
+		return unhandled_messages.get();
+	}
+
+	@Override
+	public long getRejectedHandlerTasks()
+	{
+		return rejected_handler_tasks.get();
+	}
+
+	@Override
+	public long getFailedSends()
+	{
+		return failed_sends.get();
+	}
+
+	private TypeCounters getTypeCounters(TypeRegistry.Entry message_type)
+	{
+		TypeCounters[] counters = type_counters;
+		if (message_type.index >= counters.length)
+		{
+			counters = growTypeCounters();
+		}
+		return counters[message_type.index];
+	}
+
+	// Adds counters for the types registered since, keeping the existing ones, so no count is lost to a thread recording meanwhile
+	private synchronized TypeCounters[] growTypeCounters()
+	{
+		TypeCounters[] counters = type_counters;
+		int size = type_registry.size();
+		if (counters.length < size)
+		{
+			TypeCounters[] grown = new TypeCounters[size];
+			System.arraycopy(counters, 0, grown, 0, counters.length);
+			for (int i = counters.length; i < size; i++)
+			{
+				grown[i] = new TypeCounters(type_registry.getEntryAt(i).descriptor.getFullName());
+			}
+			type_counters = grown;
+			counters = grown;
+		}
+		return counters;
+	}
+}
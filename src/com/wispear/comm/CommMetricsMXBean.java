@@ -0,0 +1,93 @@
+package com.wispear.comm;
+
+import java.util.Map;
+
+/**
+ * The metrics of a CommManager, as exported through JMX (see CommManager.registerMBean). Each getter reads the current values.
+ */
+public interface CommMetricsMXBean {
+	/**
+	 * @return Messages sent, by the full name of their type
+	 */
+	public Map<String, Long> getSentMessages();
+
+	/**
+	 * @return Bytes of the messages sent (without the headers), by the full name of their type
+	 */
+	public Map<String, Long> getSentBytes();
+
+	/**
+	 * @return Messages received, by the full name of their type
+	 */
+	public Map<String, Long> getReceivedMessages();
+
+	/**
+	 * @return Bytes of the messages received (without the headers), by the full name of their type
+	 */
+	public Map<String, Long> getReceivedBytes();
+
+	/**
+	 * @return How long the handlers of received messages took, including the reply handlers
+	 */
+	public HistogramSnapshot getHandlerTime();
+
+	/**
+	 * @return How long received messages waited for their handler executor to run them. Messages handled inline don't wait
+	 */
+	public HistogramSnapshot getQueueWait();
+
+	/**
+	 * @return How long the requests sent took, from sending until their reply arrived. Timed out and rejected requests aren't included
+	 */
+	public HistogramSnapshot getRoundTrip();
+
+	/**
+	 * @return Requests sent which are waiting for their reply
+	 */
+	public int getOutstandingRequests();
+
+	/**
+	 * @return Dealers (i.e. connections) open to the addresses requests are sent to
+	 */
+	public int getDealers();
+
+	/**
+	 * @return Requests sent which timed out
+	 */
+	public long getTimeouts();
+
+	/**
+	 * @return Requests sent which services rejected as busy
+	 */
+	public long getBusyReplies();
+
+	/**
+	 * @return Requests received which were rejected as busy, over the in-flight limit or the queue of their peer
+	 */
+	public long getRejectedRequests();
+
+	/**
+	 * @return Replies received to requests which were no longer waiting for them, usually as they timed out
+	 */
+	public long getUnexpectedReplies();
+
+	/**
+	 * @return Messages received with a malformed header, or of a type missing from the type registry
+	 */
+	public long getMalformedMessages();
+
+	/**
+	 * @return Messages received without a handler for their type
+	 */
+	public long getUnhandledMessages();
+
+	/**
+	 * @return Messages (and timeouts) whose handler executor rejected them
+	 */
+	public long getRejectedHandlerTasks();
+
+	/**
+	 * @return Messages which couldn't be sent, e.g. publications without a bound publisher, or replies without a peer id
+	 */
+	public long getFailedSends();
+}
@@ -0,0 +1,135 @@
+package com.wispear.comm;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits the requests a service handles at once - from the moment the router receives a request, until its handler returns. Requests
+ * over the limit are rejected at once, instead of waiting in a queue for longer than anyone waits for their reply.
+ * The limit is either fixed, or adapts by AIMD: it grows by about one per limit's worth of requests handled within the target latency
+ * (while the limit is actually in use), and shrinks by a tenth whenever a request takes longer. The latency of a request includes its
+ * time in the queue of its executor, which is what grows first when the handlers fall behind.
+ * Thread safe - requests are admitted by the poller thread, and released by whichever thread ran the handler.
+ */
+class ConcurrencyLimit {
+
+	private final static double BACKOFF_RATIO = 0.9;
+
+	private final AtomicInteger in_flight;
+	private volatile int limit;
+
+	// Only for an adaptive limit. The estimate is guarded by this
+	private final boolean adaptive;
+	private final int min_limit;
+	private final int max_limit;
+	private final long target_latency_nanos;
+	private double estimated_limit;
+
+	/**
+	 * A fixed limit
+	 */
+	ConcurrencyLimit(int limit)
+	{
+		this(limit, limit, limit, 0);
+	}
+
+	/**
+	 * An adaptive limit, starting at the maximum
+	 * @param target_latency - Milliseconds a request may take, from its receipt until its handler returns, before the limit shrinks
+	 */
+	ConcurrencyLimit(int min_limit, int max_limit, long target_latency)
+	{
+		this(min_limit, max_limit, max_limit, target_latency);
+	}
+
+	private ConcurrencyLimit(int min_limit, int max_limit, int initial_limit, long target_latency)
+	{
+		if ((min_limit < 1) || (max_limit < min_limit))
+		{
+			throw new IllegalArgumentException("Invalid limits " + min_limit + " - " + max_limit);
+		}
+
+		in_flight = new AtomicInteger();
+		limit = initial_limit;
+		adaptive = (target_latency > 0);
+		this.min_limit = min_limit;
+		this.max_limit = max_limit;
+		target_latency_nanos = target_latency * 1000000;
+		estimated_limit = initial_limit;
+	}
+
+	/**
+	 * @return Whether a request may be handled. If so, it must be released once handled
+	 */
+	boolean tryAcquire()
+	{
+		while (true)
+		{
+			int current = in_flight.get();
+			if (current >= limit)
+			{
+				return false;
+			}
+			if (in_flight.compareAndSet(current, current + 1))
+			{
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * @return Whether a request may be handled now. Together with acquire, for a single thread which checks before it takes a request to
+	 * handle - as other threads only release, the capacity can't be taken meanwhile
+	 */
+	boolean hasCapacity()
+	{
+		return in_flight.get() < limit;
+	}
+
+	/**
+	 * Count a request as handled, after checking hasCapacity
+	 */
+	void acquire()
+	{
+		in_flight.incrementAndGet();
+	}
+
+	/**
+	 * A request was handled (or dropped)
+	 * @param start_nanos - System.nanoTime() when the request was received
+	 */
+	void release(long start_nanos)
+	{
+		int current = in_flight.getAndDecrement();
+		if (adaptive)
+		{
+			adapt(System.nanoTime() - start_nanos, current);
+		}
+	}
+
+	/**
+	 * @return Amount of requests being handled now
+	 */
+	int getInFlight()
+	{
+		return in_flight.get();
+	}
+
+	int getLimit()
+	{
+		return limit;
+	}
+
+	private synchronized void adapt(long latency_nanos, int in_flight_before)
+	{
+		if (latency_nanos > target_latency_nanos)
+		{
+			estimated_limit = Math.max(min_limit, estimated_limit * BACKOFF_RATIO);
+		}
+		else if (in_flight_before * 2 >= estimated_limit)
+		{
+			// Only grow while the limit is in use - an idle service proves nothing about its capacity
+			estimated_limit = Math.min(max_limit, estimated_limit + 1 / estimated_limit);
+		}
+		limit = (int) estimated_limit;
+	}
+}
@@ -0,0 +1,107 @@
+package com.wispear.comm;
+
+import java.util.UUID;
+
+import org.zeromq.ZMQ;
+
+/**
+ * The dealer sockets connected to one address, each a connection of its own. A request goes to the dealer with the fewest outstanding
+ * requests, so a slow reply on one connection doesn't hold up the requests queued behind it on that connection.
+ * The outstanding requests of a dealer are the ones waiting in the correlation table of the event loop - counted when the request is sent,
+ * and released when its reply arrives or it times out. Requests without a reply aren't counted.
+ * Not thread safe - it belongs to the poller thread of an event loop, like the sockets.
+ */
+class DealerPool {
+
+	private final ZMQ.Socket[] dealers;
+	private final int[] outstanding;
+
+	// Where the next search starts, so dealers with the same amount of outstanding requests take turns
+	private int next_dealer;
+
+	/**
+	 * Creates and connects the dealers. The event loop registers them in its poller
+	 * @param size - Amount of dealers
+	 * @param client_id - Identifies the client to the services (see CommManager.setClientId). null for identities generated by ZMQ
+	 */
+	DealerPool(ZMQ.Context context, String addr, int size, String client_id)
+	{
+		dealers = new ZMQ.Socket[size];
+		outstanding = new int[size];
+		for (int i = 0; i < size; i++)
+		{
+			dealers[i] = context.socket(ZMQ.DEALER);
+			if (client_id != null)
+			{
+				// The identity of each connection must be unique at the router, also between processes of the same client
+				dealers[i].setIdentity((client_id + (char) PeerScheduler.CLIENT_ID_SEPARATOR + UUID.randomUUID()).getBytes());
+			}
+			dealers[i].connect(addr);
+		}
+	}
+
+	/**
+	 * @return Index of the dealer with the fewest outstanding requests
+	 */
+	int select()
+	{
+		int selected = next_dealer;
+		for (int i = 1; i < dealers.length; i++)
+		{
+			int index = (next_dealer + i) % dealers.length;
+			if (outstanding[index] < outstanding[selected])
+			{
+				selected = index;
+			}
+		}
+		next_dealer = (selected + 1) % dealers.length;
+		return selected;
+	}
+
+	ZMQ.Socket getDealer(int index)
+	{
+		return dealers[index];
+	}
+
+	int size()
+	{
+		return dealers.length;
+	}
+
+	/**
+	 * A request which expects a reply was sent on the dealer
+	 */
+	void requestSent(int index)
+	{
+		outstanding[index]++;
+	}
+
+	/**
+	 * The reply of a request sent on the dealer arrived, or the request timed out
+	 */
+	void requestDone(int index)
+	{
+		outstanding[index]--;
+	}
+
+	/**
+	 * @return Amount of requests waiting for a reply, on all of the dealers
+	 */
+	int getOutstanding()
+	{
+		int total = 0;
+		for (int count : outstanding)
+		{
+			total += count;
+		}
+		return total;
+	}
+
+	void close()
+	{
+		for (ZMQ.Socket dealer : dealers)
+		{
+			dealer.close();
+		}
+	}
+}
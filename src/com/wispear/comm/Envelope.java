@@ -0,0 +1,250 @@
+package com.wispear.comm;
+
+/**
+ * The header frame which precedes the payload of every message: a single frame with a fixed layout, so a request or publication is
+ * 2 ZMQ frames (the router adds the peer id in front), instead of separate frames for the request id, type and message count.
+ *
+ * Layout (big endian):
+ *   0  type id         2 bytes - first, so the SUB socket prefix filter still subscribes by type
+ *   2  version         1 byte
+ *   3  flags           1 byte
+ *   4  correlation id  4 bytes, or 8 with FLAG_CORRELATION_64. The request id of requests and replies, 0 for publications
+ *      timeout         8 bytes, only with FLAG_TIMEOUT - milliseconds the requester still waits for the reply, when it sent the request
+ *      message count   4 bytes, only with FLAG_BATCH - the payload holds this many length delimited messages (see publishBatch)
+ *
+ * A reply with FLAG_BUSY means the service rejected the request without handling it (see CommManager.setMaxInFlightRequests). Its type id is
+ * the one of the request, and its payload is empty.
+ *
+ * The timeout is relative, so the clocks of the peers don't need to agree. New optional fields are added with new flags, after the
+ * existing ones, so older readers of the same version can still find the fields they know.
+ * The CommManager issues 32 bit request ids. 64 bit correlation ids are read, and accepted as long as their value fits in 32 bits.
+ *
+ * The original framing (see CommManager.setLegacyFraming) has no header frame: a request or reply is the 4 byte request id, the type name
+ * (e.g. AddEntity) and the message, and a publication is the type name and the message. Receiving tells the two apart by the version byte,
+ * which is a control character no type name contains - and which the 4 byte request id frame is too short to have.
+ *
+ * An instance holds the fields of the last decoded header, so the poller thread decodes every message into the same instance.
+ */
+class Envelope {
+
+	final static int VERSION = 1;
+
+	final static int FLAG_CORRELATION_64 = 0x01;
+	final static int FLAG_TIMEOUT = 0x02;
+	final static int FLAG_BATCH = 0x04;
+	final static int FLAG_BUSY = 0x08;
+
+	final static int MIN_LENGTH = 8;
+	final static int FORWARDING_LENGTH = 16;
+
+	// Value of message_count for a payload with a single message
+	final static int SINGLE_MESSAGE = -1;
+
+	int type_id;
+	int flags;
+	int correlation_id;
+	long timeout;
+	int message_count;
+	// Whether the message came in the original framing, whose requesters don't know the Busy reply
+	boolean legacy;
+
+	/**
+	 * @return Whether the first frame of a message (after the peer id) is a header frame, rather than a frame of the original framing
+	 */
+	static boolean isHeader(byte[] frame)
+	{
+		return (frame.length >= MIN_LENGTH) && ((frame[2] & 0xFF) == VERSION);
+	}
+
+	/**
+	 * Decodes a header frame into the fields of this instance
+	 * @return False if the header can't be read - an unknown version, a truncated frame, or a correlation id which doesn't fit in 32 bits
+	 */
+	boolean decode(byte[] frame)
+	{
+		if ((frame.length < MIN_LENGTH) || ((frame[2] & 0xFF) != VERSION))
+		{
+			return false;
+		}
+
+		type_id = ((frame[0] & 0xFF) << 8) | (frame[1] & 0xFF);
+		flags = frame[3] & 0xFF;
+		legacy = false;
+		int position = 4;
+
+		if ((flags & FLAG_CORRELATION_64) != 0)
+		{
+			if (frame.length < position + 8)
+			{
+				return false;
+			}
+			long wide_correlation_id = readLong(frame, position);
+			if ((wide_correlation_id < Integer.MIN_VALUE) || (wide_correlation_id > Integer.MAX_VALUE))
+			{
+				return false;
+			}
+			correlation_id = (int) wide_correlation_id;
+			position += 8;
+		}
+		else
+		{
+			correlation_id = readInt(frame, position);
+			position += 4;
+		}
+
+		timeout = 0;
+		if ((flags & FLAG_TIMEOUT) != 0)
+		{
+			if (frame.length < position + 8)
+			{
+				return false;
+			}
+			timeout = readLong(frame, position);
+			position += 8;
+		}
+
+		message_count = SINGLE_MESSAGE;
+		if ((flags & FLAG_BATCH) != 0)
+		{
+			if (frame.length < position + 4)
+			{
+				return false;
+			}
+			message_count = readInt(frame, position);
+		}
+		return true;
+	}
+
+	/**
+	 * Fills the fields of this instance from the frames of the original framing, which has a single message and no timeout
+	 * @param type_id - Type id of the type named by the type frame
+	 * @param correlation_id - The request id frame, or 0 if there was none
+	 */
+	void decodeLegacy(int type_id, int correlation_id)
+	{
+		this.type_id = type_id;
+		flags = 0;
+		this.correlation_id = correlation_id;
+		timeout = 0;
+		message_count = SINGLE_MESSAGE;
+		legacy = true;
+	}
+
+	/**
+	 * @param type_id - Type id of the payload
+	 * @param correlation_id - Request id, or 0 for publications
+	 * @param timeout - Milliseconds the requester waits for the reply, or 0 for none
+	 * @param message_count - Amount of messages in a batch payload, or SINGLE_MESSAGE
+	 * @return A new header frame
+	 */
+	static byte[] encode(int type_id, int correlation_id, long timeout, int message_count)
+	{
+		int flags = 0;
+		int length = MIN_LENGTH;
+		if (timeout > 0)
+		{
+			flags |= FLAG_TIMEOUT;
+			length += 8;
+		}
+		if (message_count != SINGLE_MESSAGE)
+		{
+			flags |= FLAG_BATCH;
+			length += 4;
+		}
+
+		byte[] frame = new byte[length];
+		frame[0] = (byte) (type_id >>> 8);
+		frame[1] = (byte) type_id;
+		frame[2] = (byte) VERSION;
+		frame[3] = (byte) flags;
+		writeInt(frame, 4, correlation_id);
+		int position = MIN_LENGTH;
+
+		if (timeout > 0)
+		{
+			writeInt(frame, position, (int) (timeout >>> 32));
+			writeInt(frame, position + 4, (int) timeout);
+			position += 8;
+		}
+		if (message_count != SINGLE_MESSAGE)
+		{
+			writeInt(frame, position, message_count);
+		}
+		return frame;
+	}
+
+	/**
+	 * @param type_id - Type id of the rejected request
+	 * @param correlation_id - Request id of the rejected request
+	 * @return A new header frame of a Busy reply
+	 */
+	static byte[] encodeBusy(int type_id, int correlation_id)
+	{
+		byte[] frame = encode(type_id, correlation_id, 0, SINGLE_MESSAGE);
+		frame[3] = (byte) FLAG_BUSY;
+		return frame;
+	}
+
+	/**
+	 * @return Whether the last decoded header is of a Busy reply
+	 */
+	boolean isBusy()
+	{
+		return (flags & FLAG_BUSY) != 0;
+	}
+
+	/**
+	 * The main event loop passes a request on to the loop which handles it (a worker, or itself under fair scheduling) with a forwarding frame
+	 * after the peer id, holding what it took on first receiving the request - so the time the request then waits in the queues counts.
+	 * Only passes between threads of one process, so it may hold System.nanoTime()
+	 * @param admission_nanos - System.nanoTime() when the request was admitted (see CommManager.setAdaptiveInFlightLimit)
+	 * @param deadline - System.currentTimeMillis() after which the requester no longer waits for the reply, or 0 for none
+	 * @return A new forwarding frame
+	 */
+	static byte[] encodeForwarding(long admission_nanos, long deadline)
+	{
+		byte[] frame = new byte[FORWARDING_LENGTH];
+		writeInt(frame, 0, (int) (admission_nanos >>> 32));
+		writeInt(frame, 4, (int) admission_nanos);
+		writeInt(frame, 8, (int) (deadline >>> 32));
+		writeInt(frame, 12, (int) deadline);
+		return frame;
+	}
+
+	/**
+	 * @return The admission time of a forwarding frame (see encodeForwarding)
+	 */
+	static long readForwardedAdmission(byte[] frame)
+	{
+		return readLong(frame, 0);
+	}
+
+	/**
+	 * @return The deadline of a forwarding frame (see encodeForwarding)
+	 */
+	static long readForwardedDeadline(byte[] frame)
+	{
+		return readLong(frame, 8);
+	}
+
+	/**
+	 * Decodes a big endian int (e.g. a request id frame of the original framing)
+	 */
+	static int readInt(byte[] frame, int offset)
+	{
+		return ((frame[offset] & 0xFF) << 24) | ((frame[offset + 1] & 0xFF) << 16) | ((frame[offset + 2] & 0xFF) << 8) | (frame[offset + 3] & 0xFF);
+	}
+
+	private static long readLong(byte[] frame, int offset)
+	{
+		return ((long) readInt(frame, offset) << 32) | (readInt(frame, offset + 4) & 0xFFFFFFFFL);
+	}
+
+	private static void writeInt(byte[] frame, int offset, int value)
+	{
+		frame[offset] = (byte) (value >>> 24);
+		frame[offset + 1] = (byte) (value >>> 16);
+		frame[offset + 2] = (byte) (value >>> 8);
+		frame[offset + 3] = (byte) value;
+	}
+}
@@ -0,0 +1,122 @@
+package com.wispear.comm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.GeneratedMessage;
+
+/**
+ * Serializes messages into frames for sending, through a single CodedOutputStream which is reused for all messages.
+ * ZMQ takes ownership of a sent array without copying it, so each frame is still a new array of exactly the serialized size, but nothing
+ * else is allocated per message. Not thread safe - it belongs to the poller thread, like the sockets.
+ */
+class FrameSerializer extends OutputStream {
+
+	private final static int BUFFER_SIZE = 4096;
+
+	private final CodedOutputStream output;
+	private byte[] frame;
+	private int frame_position;
+
+	FrameSerializer()
+	{
+		output = CodedOutputStream.newInstance(this, BUFFER_SIZE);
+	}
+
+	/**
+	 * @return A new frame holding the serialized message
+	 */
+	byte[] serialize(GeneratedMessage message)
+	{
+		startFrame(message.getSerializedSize());
+		try
+		{
+			message.writeTo(output);
+		}
+		catch (IOException ex)
+		{
+			// Can't happen when writing to a frame
+			throw new IllegalStateException(ex);
+		}
+		return finishFrame();
+	}
+
+	/**
+	 * @param frame_size - Sum of the delimited sizes of the messages
+	 * @return A new frame holding the messages from start (inclusive) to end (exclusive), each prefixed by its length
+	 */
+	byte[] serializeDelimited(List<? extends GeneratedMessage> messages, int start, int end, int frame_size)
+	{
+		startFrame(frame_size);
+		try
+		{
+			for (int i = start; i < end; i++)
+			{
+				output.writeMessageNoTag(messages.get(i));
+			}
+		}
+		catch (IOException ex)
+		{
+			// Can't happen when writing to a frame
+			throw new IllegalStateException(ex);
+		}
+		return finishFrame();
+	}
+
+	/**
+	 * @return Size of the message when serialized in a batch frame, including its length prefix
+	 */
+	static int delimitedSize(GeneratedMessage message)
+	{
+		return CodedOutputStream.computeMessageSizeNoTag(message);
+	}
+
+	/**
+	 * @return A new 4 byte frame holding the value, big endian (the request id frame of the original framing)
+	 */
+	static byte[] intFrame(int value)
+	{
+		return new byte[] { (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value };
+	}
+
+	@Override
+	public void write(int b)
+	{
+		frame[frame_position++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length)
+	{
+		System.arraycopy(bytes, offset, frame, frame_position, length);
+		frame_position += length;
+	}
+
+	private void startFrame(int frame_size)
+	{
+		frame = new byte[frame_size];
+		frame_position = 0;
+	}
+
+	private byte[] finishFrame()
+	{
+		try
+		{
+			output.flush();
+		}
+		catch (IOException ex)
+		{
+			throw new IllegalStateException(ex);
+		}
+
+		byte[] result = frame;
+		frame = null;
+		if (frame_position != result.length)
+		{
+			throw new IllegalStateException("Serialized " + frame_position + " bytes into a frame of " + result.length);
+		}
+		return result;
+	}
+}
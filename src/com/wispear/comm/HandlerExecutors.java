@@ -0,0 +1,131 @@
+package com.wispear.comm;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factory for the executors a CommManager can dispatch MessageHandler callbacks on.
+ * The poller thread only receives and parses a message, and then hands the handler call to the executor bound to the message type
+ * (see CommManager.setHandlerExecutor). Executors created here use daemon threads, so they never keep the process alive, but it is up to the
+ * caller to shut them down once the CommManager is closed.
+ */
+public final class HandlerExecutors {
+
+	private final static Executor INLINE = new Executor() {
+		@Override
+		public void execute(Runnable command)
+		{
+			command.run();
+		}
+	};
+
+	private HandlerExecutors() { }
+
+	/**
+	 * Runs the handler directly on the poller thread. This is the default, and matches the original behaviour of the CommManager:
+	 * a slow handler blocks receiving on all sockets.
+	 * @return The shared inline executor
+	 */
+	public static Executor inline()
+	{
+		return INLINE;
+	}
+
+	/**
+	 * A fixed pool of threads shared by all the message types it is bound to. Work is queued without bound.
+	 * @param threads - Number of threads in the pool
+	 * @return The new executor
+	 */
+	public static ExecutorService fixedPool(int threads)
+	{
+		return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+				new HandlerThreadFactory("comm-handler"));
+	}
+
+	/**
+	 * A dedicated pool meant to be bound to a single message type (a bulkhead), so one slow type cannot take the threads of the others.
+	 * The queue is bounded - when it is full the message is rejected, and the CommManager drops it instead of blocking the poller thread.
+	 * @param name - Name used for the pool threads
+	 * @param threads - Number of threads in the pool
+	 * @param queue_capacity - Maximum amount of messages waiting for a thread
+	 * @return The new executor
+	 */
+	public static ExecutorService bulkhead(String name, int threads, int queue_capacity)
+	{
+		return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queue_capacity),
+				new HandlerThreadFactory(name), new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	/**
+	 * A striped executor with a lane per available core, for handling message types in order per key.
+	 * See CommManager.setOrderedHandlerExecutor
+	 * @return The new executor
+	 */
+	public static StripedExecutor striped()
+	{
+		return new StripedExecutor(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Runs every handler on its own new virtual thread, so handlers may block (e.g. on downstream I/O) without sizing a pool for it.
+	 * Virtual threads need Java 21 or later. The library is built for older runtimes, so the factory is looked up at runtime, and on
+	 * older runtimes this falls back to a cached pool of platform threads.
+	 * @return The new executor
+	 */
+	public static ExecutorService virtualThreadPerTask()
+	{
+		try
+		{
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		}
+		catch (ReflectiveOperationException ex)
+		{
+			return Executors.newCachedThreadPool(new HandlerThreadFactory("comm-handler"));
+		}
+	}
+
+	/**
+	 * @return Whether this runtime supports virtual threads, i.e. whether virtualThreadPerTask() really creates virtual threads
+	 */
+	public static boolean isVirtualThreadSupported()
+	{
+		try
+		{
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return true;
+		}
+		catch (NoSuchMethodException ex)
+		{
+			return false;
+		}
+	}
+
+	// Names the handler threads and marks them as daemons
+	static class HandlerThreadFactory implements ThreadFactory
+	{
+		private final String name;
+		private final AtomicInteger next_index = new AtomicInteger();
+
+		HandlerThreadFactory(String name)
+		{
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, name + "-" + next_index.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package com.wispear.comm;
+
+import java.util.Arrays;
+
+/**
+ * A consistent hash ring, mapping keys to the members of a service group. Each member has VIRTUAL_NODES points on the ring, at hashes of
+ * its address, and a key belongs to the member of the first point at or after the hash of the key. The points of a member only depend
+ * on its address, so when a member joins only the keys it takes over move, and when a member leaves only its own keys move - spread over
+ * the remaining members by the virtual nodes, rather than all going to one neighbour.
+ * The ring is immutable - a change of members builds a new one. A lookup is a binary search over a primitive array, so it allocates nothing,
+ * and is safe from any thread.
+ */
+class HashRing {
+
+	// Enough points per member for an even spread of the keys (about 10% deviation from the mean load), in a small array
+	final static int VIRTUAL_NODES = 160;
+
+	// The points sorted by hash, and the index of the member owning each
+	private final int[] points;
+	private final int[] owners;
+
+	/**
+	 * @param members - Addresses of the members. Their index in the array is what lookups return
+	 */
+	HashRing(String[] members)
+	{
+		// Each point is sorted together with its owner, as the hash in the high half of a long and the owner in the low half
+		long[] sorted_points = new long[members.length * VIRTUAL_NODES];
+		for (int member = 0; member < members.length; member++)
+		{
+			for (int node = 0; node < VIRTUAL_NODES; node++)
+			{
+				sorted_points[member * VIRTUAL_NODES + node] = ((long) hash(members[member], node) << 32) | member;
+			}
+		}
+		Arrays.sort(sorted_points);
+
+		points = new int[sorted_points.length];
+		owners = new int[sorted_points.length];
+		for (int i = 0; i < sorted_points.length; i++)
+		{
+			points[i] = (int) (sorted_points[i] >> 32);
+			owners[i] = (int) sorted_points[i];
+		}
+	}
+
+	/**
+	 * @return Index of the member which owns the key
+	 */
+	int lookup(long key)
+	{
+		int index = Arrays.binarySearch(points, (int) (mix(key) >>> 32));
+		if (index < 0)
+		{
+			// Not a point itself - the first point after it, wrapping around the end of the ring
+			index = -index - 1;
+			if (index == points.length)
+			{
+				index = 0;
+			}
+		}
+		return owners[index];
+	}
+
+	// Hash of a virtual node: FNV-1a over the address and the node number, then mixed, as similar addresses differ in a few characters only
+	private static int hash(String member, int node)
+	{
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < member.length(); i++)
+		{
+			hash = (hash ^ member.charAt(i)) * 0x100000001b3L;
+		}
+		hash = (hash ^ node) * 0x100000001b3L;
+		return (int) (mix(hash) >>> 32);
+	}
+
+	// The finalizer of MurmurHash3, so consecutive keys (e.g. entity ids) land all over the ring
+	private static long mix(long value)
+	{
+		value ^= value >>> 33;
+		value *= 0xff51afd7ed558ccdL;
+		value ^= value >>> 33;
+		value *= 0xc4ceb93fe5c8bd53L;
+		value ^= value >>> 33;
+		return value;
+	}
+}
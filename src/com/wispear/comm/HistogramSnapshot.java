@@ -0,0 +1,72 @@
+package com.wispear.comm;
+
+/**
+ * The latencies recorded by a histogram of the CommMetrics, at the time the snapshot was taken. All times are in microseconds, and the
+ * percentiles are accurate to about 3%.
+ * The getters make it a composite value in JMX.
+ */
+public class HistogramSnapshot {
+
+	private final long count;
+	private final double mean;
+	private final double max;
+	private final double p50;
+	private final double p90;
+	private final double p99;
+	private final double p999;
+
+	HistogramSnapshot(long count, double mean_nanos, long max_nanos, long p50_nanos, long p90_nanos, long p99_nanos, long p999_nanos)
+	{
+		this.count = count;
+		mean = mean_nanos / 1000;
+		max = max_nanos / 1000.0;
+		p50 = p50_nanos / 1000.0;
+		p90 = p90_nanos / 1000.0;
+		p99 = p99_nanos / 1000.0;
+		p999 = p999_nanos / 1000.0;
+	}
+
+	/**
+	 * @return Amount of latencies recorded
+	 */
+	public long getCount()
+	{
+		return count;
+	}
+
+	public double getMean()
+	{
+		return mean;
+	}
+
+	public double getMax()
+	{
+		return max;
+	}
+
+	public double getP50()
+	{
+		return p50;
+	}
+
+	public double getP90()
+	{
+		return p90;
+	}
+
+	public double getP99()
+	{
+		return p99;
+	}
+
+	public double getP999()
+	{
+		return p999;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("count=%d mean=%.1fus p50=%.1fus p90=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus", count, mean, p50, p90, p99, p999, max);
+	}
+}
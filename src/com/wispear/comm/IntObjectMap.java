@@ -0,0 +1,165 @@
+package com.wispear.comm;
+
+/**
+ * An open addressing hash map from primitive int keys to objects, used as the request correlation table.
+ * Keys are not boxed, and entries live in two flat arrays (linear probing). Removal shifts the following entries back instead of leaving
+ * tombstones, so a table with a steady flow of short lived keys (request ids) doesn't degrade or grow.
+ * The map is not thread safe. null values are not supported - null is returned for missing keys.
+ */
+class IntObjectMap<V> {
+	private final static float LOAD_FACTOR = 0.5f;
+	
+	private int[] keys;
+	private Object[] values;
+	private int mask;
+	private int size;
+	private int resize_threshold;
+	
+	/**
+	 * @param expected_size - Amount of entries the map should hold without resizing
+	 */
+	IntObjectMap(int expected_size)
+	{
+		int capacity = Integer.highestOneBit(Math.max((int) (expected_size / LOAD_FACTOR), 2) - 1) << 1;
+		allocate(capacity);
+	}
+	
+	/**
+	 * @param key - Key to look up
+	 * @return The value mapped to the key, or null
+	 */
+	@SuppressWarnings("unchecked")
+	V get(int key)
+	{
+		for (int index = indexOf(key); values[index] != null; index = (index + 1) & mask)
+		{
+			if (keys[index] == key)
+			{
+				return (V) values[index];
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Map the key to a value, replacing any previous value
+	 * @param key - The key
+	 * @param value - The value. Must not be null
+	 * @return The previous value of this key, or null
+	 */
+	@SuppressWarnings("unchecked")
+	V put(int key, V value)
+	{
+		if (value == null)
+		{
+			throw new IllegalArgumentException("null values are not supported");
+		}
+		
+		int index = indexOf(key);
+		for (; values[index] != null; index = (index + 1) & mask)
+		{
+			if (keys[index] == key)
+			{
+				V previous = (V) values[index];
+				values[index] = value;
+				return previous;
+			}
+		}
+		
+		keys[index] = key;
+		values[index] = value;
+		if (++size > resize_threshold)
+		{
+			resize(values.length << 1);
+		}
+		return null;
+	}
+	
+	/**
+	 * Remove the key from the map
+	 * @param key - The key
+	 * @return The value which was mapped to the key, or null
+	 */
+	@SuppressWarnings("unchecked")
+	V remove(int key)
+	{
+		int index = indexOf(key);
+		for (; values[index] != null; index = (index + 1) & mask)
+		{
+			if (keys[index] == key)
+			{
+				V removed = (V) values[index];
+				values[index] = null;
+				size--;
+				shiftBack(index);
+				return removed;
+			}
+		}
+		return null;
+	}
+	
+	int size()
+	{
+		return size;
+	}
+	
+	boolean isEmpty()
+	{
+		return size == 0;
+	}
+	
+	// Close the gap left by a removed entry, by moving back entries of the same probe sequence
+	private void shiftBack(int gap)
+	{
+		int index = (gap + 1) & mask;
+		while (values[index] != null)
+		{
+			int home = indexOf(keys[index]);
+			// Move the entry if the gap lies between its home slot and its current slot (cyclically)
+			if (((index - home) & mask) >= ((index - gap) & mask))
+			{
+				keys[gap] = keys[index];
+				values[gap] = values[index];
+				values[index] = null;
+				gap = index;
+			}
+			index = (index + 1) & mask;
+		}
+	}
+	
+	private void resize(int capacity)
+	{
+		int[] old_keys = keys;
+		Object[] old_values = values;
+		allocate(capacity);
+		
+		for (int i = 0; i < old_values.length; i++)
+		{
+			if (old_values[i] != null)
+			{
+				int index = indexOf(old_keys[i]);
+				while (values[index] != null)
+				{
+					index = (index + 1) & mask;
+				}
+				keys[index] = old_keys[i];
+				values[index] = old_values[i];
+			}
+		}
+	}
+	
+	private void allocate(int capacity)
+	{
+		keys = new int[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+		resize_threshold = (int) (capacity * LOAD_FACTOR);
+	}
+	
+	private int indexOf(int key)
+	{
+		// Request ids are sequential, so spread them with a multiplicative hash
+		int hash = key * 0x9E3779B9;
+		return (hash ^ (hash >>> 16)) & mask;
+	}
+}
@@ -0,0 +1,110 @@
+package com.wispear.comm;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in nanoseconds, with buckets in the manner of HdrHistogram: each power of 2 is split into SUB_BUCKETS linear
+ * buckets, so every value is kept to within about 3% of itself, from nanoseconds up to minutes, in a fixed array of counts.
+ * Recording is a few atomic increments, without allocating or locking, so any thread may record. A snapshot copies the counts, and
+ * computes the percentiles from the copy.
+ */
+class LatencyHistogram {
+
+	private final static int SUB_BUCKET_BITS = 5;
+	private final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	// Values from 2^MAX_MAGNITUDE ns (about 18 minutes) up are counted in the last bucket
+	private final static int MAX_MAGNITUDE = 40;
+	private final static long MAX_VALUE = (1L << MAX_MAGNITUDE) - 1;
+
+	private final AtomicLongArray counts;
+	private final AtomicLong total_count;
+	private final AtomicLong total_nanos;
+	private final AtomicLong max_nanos;
+
+	LatencyHistogram()
+	{
+		counts = new AtomicLongArray(getIndex(MAX_VALUE) + 1);
+		total_count = new AtomicLong();
+		total_nanos = new AtomicLong();
+		max_nanos = new AtomicLong();
+	}
+
+	void record(long nanos)
+	{
+		nanos = Math.min(Math.max(nanos, 0), MAX_VALUE);
+		counts.incrementAndGet(getIndex(nanos));
+		total_count.incrementAndGet();
+		total_nanos.addAndGet(nanos);
+
+		long max = max_nanos.get();
+		while ((nanos > max) && !max_nanos.compareAndSet(max, nanos))
+		{
+			max = max_nanos.get();
+		}
+	}
+
+	HistogramSnapshot snapshot()
+	{
+		long[] snapshot_counts = new long[counts.length()];
+		long count = 0;
+		for (int i = 0; i < snapshot_counts.length; i++)
+		{
+			snapshot_counts[i] = counts.get(i);
+			count += snapshot_counts[i];
+		}
+
+		// The totals are read separately from the counts, so they may include a few values recorded meanwhile
+		double mean = (count > 0) ? (double) total_nanos.get() / total_count.get() : 0;
+		long max = max_nanos.get();
+		return new HistogramSnapshot(count, mean, max, getPercentile(snapshot_counts, count, max, 0.5), getPercentile(snapshot_counts, count, max, 0.9),
+				getPercentile(snapshot_counts, count, max, 0.99), getPercentile(snapshot_counts, count, max, 0.999));
+	}
+
+	// The value below which the fraction of the values are, as the highest value of its bucket - but not above the highest value recorded
+	private static long getPercentile(long[] counts, long count, long max, double fraction)
+	{
+		if (count == 0)
+		{
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(count * fraction));
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++)
+		{
+			seen += counts[i];
+			if (seen >= rank)
+			{
+				return Math.min(getHighestValue(i), max);
+			}
+		}
+		return max;
+	}
+
+	// Values below 2 * SUB_BUCKETS have a bucket each. Above, the magnitude selects a group of SUB_BUCKETS buckets, and the bits below the
+	// highest one select the bucket in the group
+	private static int getIndex(long value)
+	{
+		if (value < SUB_BUCKETS)
+		{
+			return (int) value;
+		}
+
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return SUB_BUCKETS + shift * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+	}
+
+	private static long getHighestValue(int index)
+	{
+		if (index < SUB_BUCKETS)
+		{
+			return index;
+		}
+
+		int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+		long sub_bucket = SUB_BUCKETS + (index - SUB_BUCKETS) % SUB_BUCKETS;
+		return ((sub_bucket + 1) << shift) - 1;
+	}
+}
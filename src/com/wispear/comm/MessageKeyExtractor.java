@@ -0,0 +1,14 @@
+package com.wispear.comm;
+
+import com.google.protobuf.GeneratedMessage;
+
+public interface MessageKeyExtractor {
+	/**
+	 * Extract the ordering key of a received message. Messages with the same key are handled in the order they were received,
+	 * when their type is dispatched on a StripedExecutor.
+	 * @param message - The received message
+	 * @param peer_id - Relevant if this is a request message by another service. Otherwise null
+	 * @return The key. Only its value matters, so hash codes are fine
+	 */
+	public long extractKey(GeneratedMessage message, byte[] peer_id);
+}
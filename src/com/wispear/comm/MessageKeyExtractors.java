@@ -0,0 +1,98 @@
+package com.wispear.comm;
+
+import java.util.Arrays;
+
+import com.google.protobuf.Descriptors.*;
+import com.google.protobuf.GeneratedMessage;
+import com.google.protobuf.Message;
+
+/**
+ * Common MessageKeyExtractor implementations, for ordered per-key dispatch.
+ */
+public final class MessageKeyExtractors {
+
+	private final static MessageKeyExtractor PEER = new MessageKeyExtractor() {
+		@Override
+		public long extractKey(GeneratedMessage message, byte[] peer_id)
+		{
+			return (peer_id != null) ? Arrays.hashCode(peer_id) : 0;
+		}
+	};
+
+	private MessageKeyExtractors() { }
+
+	/**
+	 * Orders messages per sending peer. Messages without a peer (subscriptions and replies) all share one key.
+	 * @return The peer key extractor
+	 */
+	public static MessageKeyExtractor peer()
+	{
+		return PEER;
+	}
+
+	/**
+	 * Orders messages by the value of a (possibly nested) scalar field, e.g. field(AddEntity.getDescriptor(), "entity.id").
+	 * The path is resolved once here, so extraction only walks the fields. For a hot message type, a hand written extractor
+	 * using the generated getters avoids boxing the field value.
+	 * @param message_descriptor - Type of the messages the extractor will be used on
+	 * @param field_path - Dot separated field names, from the message to the key field
+	 * @return The field key extractor
+	 */
+	public static MessageKeyExtractor field(Descriptor message_descriptor, String field_path)
+	{
+		String[] field_names = field_path.split("\\.");
+		final FieldDescriptor[] path = new FieldDescriptor[field_names.length];
+		Descriptor descriptor = message_descriptor;
+		
+		for (int i = 0; i < field_names.length; i++)
+		{
+			if (descriptor == null)
+			{
+				throw new IllegalArgumentException(field_names[i - 1] + " is not a message field");
+			}
+			
+			FieldDescriptor field = descriptor.findFieldByName(field_names[i]);
+			if ((field == null) || field.isRepeated())
+			{
+				throw new IllegalArgumentException("No singular field " + field_names[i] + " in " + descriptor.getFullName());
+			}
+			path[i] = field;
+			descriptor = (field.getJavaType() == FieldDescriptor.JavaType.MESSAGE) ? field.getMessageType() : null;
+		}
+		
+		if (descriptor != null)
+		{
+			throw new IllegalArgumentException(field_path + " is a message, not a scalar field");
+		}
+		
+		return new MessageKeyExtractor() {
+			@Override
+			public long extractKey(GeneratedMessage message, byte[] peer_id)
+			{
+				Message current = message;
+				for (int i = 0; i < path.length - 1; i++)
+				{
+					current = (Message) current.getField(path[i]);
+				}
+				return toKey(current.getField(path[path.length - 1]));
+			}
+		};
+	}
+
+	private static long toKey(Object value)
+	{
+		if (value instanceof Number)
+		{
+			return ((Number) value).longValue();
+		}
+		else if (value instanceof Boolean)
+		{
+			return ((Boolean) value) ? 1 : 0;
+		}
+		else
+		{
+			// Strings and byte strings hash by content. Enum value descriptors are singletons, so their hash is stable in the process
+			return value.hashCode();
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package com.wispear.comm;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An unbounded lock-free multi producer, single consumer queue (a linked queue in the style of Dmitry Vyukov's MPSC queue).
+ * Any thread may offer, using a single atomic swap of the tail. Only one thread - the poller of the CommManager - may poll.
+ * The queue is intrusive: elements are their own nodes, so offering allocates nothing. An element may only be offered once.
+ */
+class MpscQueue<E extends MpscQueue.Node<E>> {
+
+	/**
+	 * Base class of the elements. The node's reference is the link to the next element
+	 */
+	static class Node<E> extends AtomicReference<E>
+	{
+		private static final long serialVersionUID = 1L;
+	}
+
+	private final AtomicReference<Node<E>> tail;
+	// Only accessed by the consumer. head is the last element polled (or the initial stub node), whose link leads to the next element
+	private Node<E> head;
+
+	MpscQueue()
+	{
+		head = new Node<E>();
+		tail = new AtomicReference<Node<E>>(head);
+	}
+
+	/**
+	 * Add an element. Safe to call from any thread
+	 * @param element - The element. Must not be null, and must not have been offered before
+	 */
+	void offer(E element)
+	{
+		Node<E> previous = tail.getAndSet(element);
+		// Between the swap and this link, the consumer sees the queue as ending at previous
+		previous.set(element);
+	}
+
+	/**
+	 * Remove the oldest element. Must only be called from the consumer thread
+	 * @return The element, or null if the queue is empty (or the next element is still being linked by its producer)
+	 */
+	E poll()
+	{
+		E next = head.get();
+		if (next == null)
+		{
+			return null;
+		}
+
+		// The element stays the head until the next poll. The link of the previous head is cleared, so polled elements don't keep later ones alive
+		head.lazySet(null);
+		head = next;
+		return next;
+	}
+
+	/**
+	 * @return Whether the queue is empty. Only accurate on the consumer thread
+	 */
+	boolean isEmpty()
+	{
+		return head.get() == null;
+	}
+}
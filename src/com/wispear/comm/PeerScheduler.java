@@ -0,0 +1,371 @@
+package com.wispear.comm;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Schedules the requests received by the router fairly between the peers which sent them. Each peer has a queue of its own, and the
+ * queues are served by deficit round robin: on its turn, a peer may send requests costing up to QUANTUM bytes times its weight (what's
+ * left over is kept for its next turn), so a peer flooding large messages gets its share of the service, and not more. A request costs
+ * its size plus REQUEST_OVERHEAD.
+ * A peer may also be capped to a rate by a token bucket, in which case its requests wait while it has no tokens, even when the service is idle.
+ * A request which finds the queue of its peer full is rejected.
+ *
+ * Peers are the clients which set a client id (see CommManager.setClientId) - all connections of one client share a queue - or otherwise
+ * each connection. The queue of a peer is found without allocating, through a reused lookup key.
+ * Not thread safe - it belongs to the main event loop, except getQueueDepths which may be called from any thread.
+ */
+class PeerScheduler {
+
+	// Bytes a peer of weight 1 may send per turn
+	final static int QUANTUM = 512;
+	
+	// Bytes each request costs on top of its size, for the work of handling it regardless of size - otherwise a peer sending small requests
+	// would get dozens handled per turn, and the others would wait for all of them
+	final static int REQUEST_OVERHEAD = 64;
+
+	// Client ids are separated from the rest of the identity of a connection by this (see DealerPool)
+	final static byte CLIENT_ID_SEPARATOR = ':';
+
+	private static class PeerKey
+	{
+		private byte[] bytes;
+		private int length;
+		private int hash;
+
+		private PeerKey set(byte[] bytes, int length)
+		{
+			this.bytes = bytes;
+			this.length = length;
+			int hash = 1;
+			for (int i = 0; i < length; i++)
+			{
+				hash = 31 * hash + bytes[i];
+			}
+			this.hash = hash;
+			return this;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object other)
+		{
+			if (!(other instanceof PeerKey))
+			{
+				return false;
+			}
+
+			PeerKey other_key = (PeerKey) other;
+			if ((other_key.length != length) || (other_key.hash != hash))
+			{
+				return false;
+			}
+			for (int i = 0; i < length; i++)
+			{
+				if (other_key.bytes[i] != bytes[i])
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private static class PeerQueue
+	{
+		private final PeerKey key;
+		private final String name;
+		// Each request is its frames, starting with the peer id
+		private final ArrayDeque<byte[][]> requests;
+		private volatile int depth;
+		private final int weight;
+		private int deficit;
+		// Whether the peer got its quantum for the current turn
+		private boolean in_turn;
+		private boolean active;
+
+		// Token bucket, for a peer with a rate limit. The tokens are requests
+		private final double tokens_per_nano;
+		private final double burst;
+		private double tokens;
+		private long last_refill;
+
+		private PeerQueue(PeerKey key, String name, int weight, double requests_per_second, int burst, long now_nanos)
+		{
+			this.key = key;
+			this.name = name;
+			requests = new ArrayDeque<byte[][]>();
+			this.weight = weight;
+			tokens_per_nano = requests_per_second / 1e9;
+			this.burst = burst;
+			tokens = burst;
+			last_refill = now_nanos;
+		}
+
+		private boolean isRateLimited()
+		{
+			return tokens_per_nano > 0;
+		}
+
+		private boolean hasToken(long now_nanos)
+		{
+			if (!isRateLimited())
+			{
+				return true;
+			}
+			tokens = Math.min(burst, tokens + (now_nanos - last_refill) * tokens_per_nano);
+			last_refill = now_nanos;
+			return tokens >= 1;
+		}
+	}
+
+	private final int max_queue_depth;
+	private final HashMap<PeerKey, PeerQueue> queues;
+	private final PeerKey lookup_key;
+	// Peers with queued requests, in the order of their turns
+	private final ArrayDeque<PeerQueue> active_queues;
+
+	// Settings by client id. Changed only before running
+	private final HashMap<String, Integer> weights;
+	private final HashMap<String, double[]> rate_limits;
+
+	/**
+	 * @param max_queue_depth - Most requests waiting in the queue of a peer
+	 */
+	PeerScheduler(int max_queue_depth)
+	{
+		if (max_queue_depth < 1)
+		{
+			throw new IllegalArgumentException("The queue depth must be at least 1");
+		}
+
+		this.max_queue_depth = max_queue_depth;
+		queues = new HashMap<PeerKey, PeerQueue>();
+		lookup_key = new PeerKey();
+		active_queues = new ArrayDeque<PeerQueue>();
+		weights = new HashMap<String, Integer>();
+		rate_limits = new HashMap<String, double[]>();
+	}
+
+	void setWeight(String client_id, int weight)
+	{
+		if (weight < 1)
+		{
+			throw new IllegalArgumentException("The weight must be at least 1");
+		}
+		weights.put(client_id, weight);
+	}
+
+	void setRateLimit(String client_id, double requests_per_second, int burst)
+	{
+		if ((requests_per_second <= 0) || (burst < 1))
+		{
+			throw new IllegalArgumentException("The rate must be positive, and the burst at least 1");
+		}
+		rate_limits.put(client_id, new double[] { requests_per_second, burst });
+	}
+
+	/**
+	 * Queue a request behind the other requests of its peer
+	 * @param request - The frames of the request, starting with the peer id
+	 * @return False if the queue of the peer is full, and the request wasn't queued
+	 */
+	boolean enqueue(byte[][] request, long now_nanos)
+	{
+		byte[] peer_id = request[0];
+		PeerQueue queue = queues.get(lookup_key.set(peer_id, getPeerKeyLength(peer_id)));
+		if (queue == null)
+		{
+			queue = createQueue(peer_id, now_nanos);
+		}
+
+		if (queue.requests.size() >= max_queue_depth)
+		{
+			return false;
+		}
+
+		queue.requests.addLast(request);
+		queue.depth = queue.requests.size();
+		if (!queue.active)
+		{
+			queue.active = true;
+			active_queues.addLast(queue);
+		}
+		return true;
+	}
+
+	/**
+	 * @return The next request to handle by deficit round robin, or null if there is none, or all the peers with requests wait for tokens
+	 */
+	byte[][] next(long now_nanos)
+	{
+		// Counts the peers which were passed over for lack of tokens since one was served or got its quantum
+		int rate_limited = 0;
+		while (rate_limited < active_queues.size())
+		{
+			PeerQueue queue = active_queues.peekFirst();
+			if (!queue.hasToken(now_nanos))
+			{
+				// The peer waits, without its deficit growing meanwhile
+				queue.in_turn = false;
+				active_queues.addLast(active_queues.pollFirst());
+				rate_limited++;
+				continue;
+			}
+			rate_limited = 0;
+
+			if (!queue.in_turn)
+			{
+				queue.deficit += QUANTUM * queue.weight;
+				queue.in_turn = true;
+			}
+
+			byte[][] request = queue.requests.peekFirst();
+			int cost = getCost(request);
+			if (cost <= queue.deficit)
+			{
+				queue.deficit -= cost;
+				if (queue.isRateLimited())
+				{
+					queue.tokens--;
+				}
+				queue.requests.pollFirst();
+				queue.depth = queue.requests.size();
+				if (queue.requests.isEmpty())
+				{
+					// An idle peer doesn't save its deficit for later
+					queue.deficit = 0;
+					queue.in_turn = false;
+					queue.active = false;
+					active_queues.pollFirst();
+					removeIfUnused(queue);
+				}
+				return request;
+			}
+
+			// The turn of the peer is over
+			queue.in_turn = false;
+			active_queues.addLast(active_queues.pollFirst());
+		}
+		return null;
+	}
+
+	/**
+	 * @return Whether any request is queued
+	 */
+	boolean hasRequests()
+	{
+		return !active_queues.isEmpty();
+	}
+
+	/**
+	 * @return Milliseconds until one of the queued peers gets a token, if all of them are waiting for one. 0 otherwise
+	 */
+	long getWaitMillis(long now_nanos)
+	{
+		double wait_nanos = Double.MAX_VALUE;
+		for (PeerQueue queue : active_queues)
+		{
+			if (queue.hasToken(now_nanos))
+			{
+				return 0;
+			}
+			wait_nanos = Math.min(wait_nanos, (1 - queue.tokens) / queue.tokens_per_nano);
+		}
+		return (long) Math.ceil(wait_nanos / 1e6);
+	}
+
+	/**
+	 * @return The amount of requests queued per peer, by client id (or by connection id, for peers without a client id)
+	 */
+	Map<String, Integer> getQueueDepths()
+	{
+		HashMap<String, Integer> depths = new HashMap<String, Integer>();
+		synchronized (queues)
+		{
+			for (PeerQueue queue : queues.values())
+			{
+				depths.put(queue.name, queue.depth);
+			}
+		}
+		return depths;
+	}
+
+	private PeerQueue createQueue(byte[] peer_id, long now_nanos)
+	{
+		int key_length = getPeerKeyLength(peer_id);
+		String name;
+		if (key_length < peer_id.length)
+		{
+			name = new String(peer_id, 0, key_length);
+		}
+		else
+		{
+			StringBuilder hex_name = new StringBuilder();
+			for (byte id_byte : peer_id)
+			{
+				hex_name.append(String.format("%02x", id_byte));
+			}
+			name = hex_name.toString();
+		}
+
+		Integer weight = weights.get(name);
+		double[] rate_limit = rate_limits.get(name);
+		PeerKey key = new PeerKey().set(Arrays.copyOf(peer_id, key_length), key_length);
+		PeerQueue queue = new PeerQueue(key, name, (weight != null) ? weight : 1, (rate_limit != null) ? rate_limit[0] : 0,
+				(rate_limit != null) ? (int) rate_limit[1] : 0, now_nanos);
+
+		synchronized (queues)
+		{
+			queues.put(key, queue);
+		}
+		return queue;
+	}
+
+	// Connections come and go, so the queue of an idle peer is dropped - unless it keeps the tokens of a rate limit, which would be refilled
+	private void removeIfUnused(PeerQueue queue)
+	{
+		if (!queue.isRateLimited())
+		{
+			synchronized (queues)
+			{
+				queues.remove(queue.key);
+			}
+		}
+	}
+
+	// The identity of a connection of a client with a client id is the client id, the separator, and a unique suffix. ZMQ generated
+	// identities start with a 0 byte, and are used whole
+	private static int getPeerKeyLength(byte[] peer_id)
+	{
+		if ((peer_id.length > 0) && (peer_id[0] != 0))
+		{
+			for (int i = 0; i < peer_id.length; i++)
+			{
+				if (peer_id[i] == CLIENT_ID_SEPARATOR)
+				{
+					return i;
+				}
+			}
+		}
+		return peer_id.length;
+	}
+
+	// The cost of a request: its size without the peer id, and the overhead
+	private static int getCost(byte[][] request)
+	{
+		int size = REQUEST_OVERHEAD;
+		for (int i = 1; i < request.length; i++)
+		{
+			size += request[i].length;
+		}
+		return size;
+	}
+}
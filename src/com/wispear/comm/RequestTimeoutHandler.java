@@ -0,0 +1,23 @@
+package com.wispear.comm;
+
+import com.google.protobuf.GeneratedMessage;
+
+public interface RequestTimeoutHandler {
+	/**
+	 * Handle a request which wasn't replied within its timeout. Its reply handlers are already removed, so a late reply is dropped.
+	 * @param request - The request message which timed out
+	 * @param request_id - id of the request, as passed to the reply handlers
+	 */
+	public void onTimeout(GeneratedMessage request, int request_id);
+	
+	/**
+	 * Handle a request which the service rejected as busy, without handling it (e.g. to retry it elsewhere, or later).
+	 * By default it's handled as a timeout, which came early.
+	 * @param request - The rejected request message
+	 * @param request_id - id of the request, as passed to the reply handlers
+	 */
+	public default void onBusy(GeneratedMessage request, int request_id)
+	{
+		onTimeout(request, request_id);
+	}
+}
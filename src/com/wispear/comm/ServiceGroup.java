@@ -0,0 +1,186 @@
+package com.wispear.comm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A named group of replicas of a service, each at its own address. Each request to the group goes to one replica, chosen by the power of
+ * two choices: two replicas are picked at random, and the request goes to the cheaper one. The cost of a replica is its latency estimate
+ * times its outstanding requests (plus the new one), so a slow or overloaded replica gets less traffic, without every request going to
+ * the single best replica of the moment.
+ * The latency estimate is a moving average of the reply latencies, which follows a slower reply at once, and decays when the replica is
+ * idle - so a replica which was slow is tried again after a while. A request which times out counts as a reply after the timeout, and
+ * a request the replica rejects as busy counts as a slow reply.
+ * Requests by key skip the choice, and go to the replica owning the key on the consistent hash ring of the group (see HashRing).
+ * A group is immutable, and a change of replicas builds a new group, which keeps the Replica of each remaining address. The choice and the
+ * replica statistics belong to the poller thread of the event loop the group is assigned to, while the ring may be used from any thread.
+ */
+class ServiceGroup {
+
+	// Time in which the latency estimate of a replica decays to about a third, without slower replies
+	private final static double DECAY_NANOS = 1e9;
+	private final static double REJECTED_LATENCY_NANOS = 1e6;
+
+	static class Replica
+	{
+		final String addr;
+
+		// Latency estimate in nanoseconds, as of last_update. 0 until the first reply
+		private double latency;
+		private long last_update;
+		private int outstanding;
+
+		private Replica(String addr)
+		{
+			this.addr = addr;
+		}
+
+		/**
+		 * A request which expects a reply was sent to the replica
+		 */
+		void requestSent()
+		{
+			outstanding++;
+		}
+
+		/**
+		 * The reply of a request arrived, or the request timed out
+		 * @param sent_nanos - System.nanoTime() when the request was sent
+		 * @param now_nanos - System.nanoTime() now
+		 */
+		void requestDone(long sent_nanos, long now_nanos)
+		{
+			outstanding--;
+			double sample = now_nanos - sent_nanos;
+			if (sample > latency)
+			{
+				latency = sample;
+			}
+			else
+			{
+				// The longer since the last reply, the more the new one weighs
+				double weight = getWeight(now_nanos);
+				latency = latency * weight + sample * (1 - weight);
+			}
+			last_update = now_nanos;
+		}
+
+		/**
+		 * The requester gave up on the request before its reply arrived. It says nothing of the latency of the replica
+		 */
+		void requestCancelled()
+		{
+			outstanding--;
+		}
+
+		/**
+		 * The request was rejected by the replica as busy. Counts as a reply twice as slow as the estimate (at least a millisecond), so the
+		 * replica gets less traffic although it answered at once
+		 * @param now_nanos - System.nanoTime() now
+		 */
+		void requestRejected(long now_nanos)
+		{
+			outstanding--;
+			latency = Math.max(latency * getWeight(now_nanos) * 2, REJECTED_LATENCY_NANOS);
+			last_update = now_nanos;
+		}
+
+		private double getCost(long now_nanos)
+		{
+			// A replica without replies yet costs by its outstanding requests alone
+			return (latency * getWeight(now_nanos) + 1) * (outstanding + 1);
+		}
+
+		private double getWeight(long now_nanos)
+		{
+			return Math.exp(-Math.max(now_nanos - last_update, 0) / DECAY_NANOS);
+		}
+	}
+
+	final String name;
+	private final Replica[] replicas;
+	private final HashRing ring;
+
+	/**
+	 * @param addrs - Addresses of the replicas. There must be at least one
+	 * @param previous - The group this one replaces, whose replicas are kept for the addresses in both. May be null
+	 */
+	ServiceGroup(String name, List<String> addrs, ServiceGroup previous)
+	{
+		if (addrs.isEmpty())
+		{
+			throw new IllegalArgumentException("Service group " + name + " has no replicas");
+		}
+
+		this.name = name;
+		replicas = new Replica[addrs.size()];
+		String[] members = new String[replicas.length];
+		for (int i = 0; i < replicas.length; i++)
+		{
+			members[i] = addrs.get(i);
+			replicas[i] = (previous != null) ? previous.getReplica(members[i]) : null;
+			if (replicas[i] == null)
+			{
+				replicas[i] = new Replica(members[i]);
+			}
+		}
+		ring = new HashRing(members);
+	}
+
+	/**
+	 * @return Addresses of the replicas
+	 */
+	List<String> getAddresses()
+	{
+		ArrayList<String> addrs = new ArrayList<String>(replicas.length);
+		for (Replica replica : replicas)
+		{
+			addrs.add(replica.addr);
+		}
+		return addrs;
+	}
+
+	/**
+	 * @return The replica which owns the key on the hash ring. Safe from any thread, and allocates nothing
+	 */
+	Replica lookup(long key)
+	{
+		return replicas[ring.lookup(key)];
+	}
+
+	/**
+	 * @param now_nanos - System.nanoTime() now
+	 * @return The replica to send the next request to
+	 */
+	Replica select(long now_nanos)
+	{
+		if (replicas.length == 1)
+		{
+			return replicas[0];
+		}
+
+		// Two distinct replicas at random
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int first = random.nextInt(replicas.length);
+		int second = random.nextInt(replicas.length - 1);
+		if (second >= first)
+		{
+			second++;
+		}
+
+		return (replicas[second].getCost(now_nanos) < replicas[first].getCost(now_nanos)) ? replicas[second] : replicas[first];
+	}
+
+	private Replica getReplica(String addr)
+	{
+		for (Replica replica : replicas)
+		{
+			if (replica.addr.equals(addr))
+			{
+				return replica;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,80 @@
+package com.wispear.comm;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An executor made of several single threaded lanes (stripes). Tasks submitted with the same key always run on the same lane, so they
+ * run one after the other in submission order, while tasks of different keys run in parallel.
+ * When a message type is bound to a StripedExecutor, the CommManager uses the MessageKeyExtractor set for that type to pick the lane.
+ * Without one, requests are ordered per peer, and other messages per type.
+ */
+public class StripedExecutor implements Executor {
+	private final ExecutorService[] stripes;
+	private final AtomicInteger next_stripe;
+	
+	/**
+	 * Constructs a striped executor
+	 * @param stripe_count - Number of lanes, i.e. the maximum amount of keys handled in parallel
+	 */
+	public StripedExecutor(int stripe_count)
+	{
+		if (stripe_count < 1)
+		{
+			throw new IllegalArgumentException("stripe_count must be positive");
+		}
+		
+		stripes = new ExecutorService[stripe_count];
+		HandlerExecutors.HandlerThreadFactory thread_factory = new HandlerExecutors.HandlerThreadFactory("comm-stripe");
+		for (int i = 0; i < stripe_count; i++)
+		{
+			stripes[i] = Executors.newSingleThreadExecutor(thread_factory);
+		}
+		next_stripe = new AtomicInteger();
+	}
+	
+	/**
+	 * Run the task after all tasks previously submitted with the same key
+	 * @param key - Ordering key
+	 * @param task - The task to run
+	 */
+	public void execute(long key, Runnable task)
+	{
+		stripes[stripeOf(key)].execute(task);
+	}
+	
+	/**
+	 * Run a task which has no ordering requirement. Tasks are spread over the lanes in turn.
+	 */
+	@Override
+	public void execute(Runnable task)
+	{
+		stripes[(next_stripe.getAndIncrement() & Integer.MAX_VALUE) % stripes.length].execute(task);
+	}
+	
+	public int getStripeCount()
+	{
+		return stripes.length;
+	}
+	
+	/**
+	 * Stops all the lanes. Tasks already submitted still run.
+	 */
+	public void shutdown()
+	{
+		for (ExecutorService stripe : stripes)
+		{
+			stripe.shutdown();
+		}
+	}
+	
+	private int stripeOf(long key)
+	{
+		// Mix the bits, as keys are often small sequential ids or hash codes with poor low bits
+		long hash = key * 0x9E3779B97F4A7C15L;
+		hash ^= (hash >>> 32);
+		return (int) ((hash & Integer.MAX_VALUE) % stripes.length);
+	}
+}
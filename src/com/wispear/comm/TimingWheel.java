@@ -0,0 +1,192 @@
+package com.wispear.comm;
+
+/**
+ * A hashed timing wheel, used for the request timeouts.
+ * Time is divided into ticks, and the wheel has a slot (a linked list of timeouts) for each tick of one revolution. A timeout is put in the
+ * slot of the tick it expires on, together with the amount of full revolutions left until then. Scheduling and cancelling are O(1), and
+ * advancing the wheel only visits the slots of the ticks that passed, no matter how many timeouts are outstanding.
+ * The wheel is not thread safe, and doesn't read the clock by itself - the owner advances it with its own (coarse) time.
+ */
+class TimingWheel {
+	
+	/**
+	 * An entry in the wheel. The links are kept in the entry itself, so scheduling allocates nothing.
+	 */
+	static abstract class Timeout
+	{
+		private Timeout prev;
+		private Timeout next;
+		private long remaining_rounds;
+		private int slot = -1;
+		
+		/**
+		 * Called by advance() once the timeout expired. The entry is already removed from the wheel, so it may be scheduled again.
+		 * It must not cancel other timeouts.
+		 */
+		protected abstract void expire();
+		
+		boolean isScheduled()
+		{
+			return slot >= 0;
+		}
+	}
+	
+	private final long tick_millis;
+	private final long start_millis;
+	private final Timeout[] slots;
+	private final int mask;
+	
+	// The last tick which was processed. Tick k expires the timeouts whose deadline is at most start_millis + k * tick_millis
+	private long current_tick;
+	private int size;
+	
+	/**
+	 * @param tick_millis - Resolution of the wheel. Timeouts expire up to a tick late
+	 * @param wheel_size - Amount of slots, rounded up to a power of two. One revolution spans wheel_size * tick_millis
+	 * @param start_millis - Current time
+	 */
+	TimingWheel(long tick_millis, int wheel_size, long start_millis)
+	{
+		if (tick_millis < 1 || wheel_size < 1)
+		{
+			throw new IllegalArgumentException("Tick and wheel size must be positive");
+		}
+		
+		int slot_count = Integer.highestOneBit(wheel_size);
+		if (slot_count < wheel_size)
+		{
+			slot_count <<= 1;
+		}
+		
+		this.tick_millis = tick_millis;
+		this.start_millis = start_millis;
+		slots = new Timeout[slot_count];
+		mask = slot_count - 1;
+		current_tick = 0;
+		size = 0;
+	}
+	
+	/**
+	 * Schedule a timeout. Deadlines which already passed expire on the next tick.
+	 * @param timeout - Entry to schedule. Must not be scheduled already
+	 * @param deadline_millis - Time on which the timeout expires
+	 */
+	void schedule(Timeout timeout, long deadline_millis)
+	{
+		if (timeout.isScheduled())
+		{
+			throw new IllegalStateException("Timeout is already scheduled");
+		}
+		
+		long target_tick = (deadline_millis - start_millis + tick_millis - 1) / tick_millis;
+		if (target_tick <= current_tick)
+		{
+			target_tick = current_tick + 1;
+		}
+		
+		int slot = (int) (target_tick & mask);
+		timeout.remaining_rounds = (target_tick - current_tick - 1) / slots.length;
+		timeout.slot = slot;
+		timeout.prev = null;
+		timeout.next = slots[slot];
+		if (slots[slot] != null)
+		{
+			slots[slot].prev = timeout;
+		}
+		slots[slot] = timeout;
+		size++;
+	}
+	
+	/**
+	 * Remove a timeout before it expires
+	 * @param timeout - Entry to cancel
+	 * @return Whether the timeout was scheduled
+	 */
+	boolean cancel(Timeout timeout)
+	{
+		if (!timeout.isScheduled())
+		{
+			return false;
+		}
+		
+		unlink(timeout);
+		return true;
+	}
+	
+	/**
+	 * Expire all the timeouts whose deadline is not after the given time, calling their expire() method
+	 * Should be called regularly, also while the wheel is empty: an empty wheel skips to the current tick at once, while a wheel with timeouts
+	 * visits every tick since it was last advanced
+	 * @param now_millis - Current time
+	 * @return Number of expired timeouts
+	 */
+	int advance(long now_millis)
+	{
+		int expired = 0;
+		
+		while (start_millis + (current_tick + 1) * tick_millis <= now_millis)
+		{
+			current_tick++;
+			if (size == 0)
+			{
+				// Nothing to expire - skip to the current tick
+				current_tick = Math.max(current_tick, (now_millis - start_millis) / tick_millis);
+				break;
+			}
+			
+			Timeout timeout = slots[(int) (current_tick & mask)];
+			while (timeout != null)
+			{
+				Timeout next = timeout.next;
+				if (timeout.remaining_rounds > 0)
+				{
+					timeout.remaining_rounds--;
+				}
+				else
+				{
+					unlink(timeout);
+					expired++;
+					timeout.expire();
+				}
+				timeout = next;
+			}
+		}
+		
+		return expired;
+	}
+	
+	/**
+	 * @return Number of scheduled timeouts
+	 */
+	int size()
+	{
+		return size;
+	}
+	
+	long getTickMillis()
+	{
+		return tick_millis;
+	}
+	
+	private void unlink(Timeout timeout)
+	{
+		if (timeout.prev != null)
+		{
+			timeout.prev.next = timeout.next;
+		}
+		else
+		{
+			slots[timeout.slot] = timeout.next;
+		}
+		
+		if (timeout.next != null)
+		{
+			timeout.next.prev = timeout.prev;
+		}
+		
+		timeout.prev = null;
+		timeout.next = null;
+		timeout.slot = -1;
+		size--;
+	}
+}
@@ -0,0 +1,405 @@
+package com.wispear.comm;
+
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import com.google.protobuf.Descriptors.*;
+import com.google.protobuf.GeneratedMessage;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Parser;
+
+/**
+ * Maps each message type (Descriptor) to a compact 2 byte type id, which is what goes on the wire as the message type, and to the protobuf
+ * Parser of the type, which the CommManager uses to parse received messages.
+ * Both sides of a connection must agree on the ids, so by default they are derived only from the full name of the type (a 16 bit hash of it),
+ * and don't depend on the order of registration or on the order of the messages in the .proto file. In the rare case two names hash to
+ * the same id, registering the second one fails, and one of them should be registered with an explicit id on all sides.
+ * Ids 0 and 0xFFFF are reserved for the CommManager itself.
+ * The parser of a type is either given explicitly (registering the default instance of the message), or discovered from the generated
+ * class of its .proto file. Discovery uses reflection once, at registration, and warms the parser up, so parsing the first message received
+ * doesn't pay for loading and initializing the class.
+ * Registration is meant to be done up front, before the CommManager runs. Lookups are then safe from any thread.
+ */
+public class TypeRegistry {
+	public final static int TYPE_ID_LENGTH = 2;
+
+	private final static int MIN_TYPE_ID = 1;
+	private final static int MAX_TYPE_ID = 0xFFFE;
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+
+	static class Entry
+	{
+		final Descriptor descriptor;
+		final int type_id;
+		// Dense index of the type, in the order of registration - for per type arrays (see CommMetrics)
+		final int index;
+		// The type id, big endian - the prefix subscriptions filter on. Shared, and must not be modified
+		final byte[] header;
+		// The type frame of the original framing (see CommManager.setLegacyFraming): the simple name of the type. Shared, and must not be modified
+		final byte[] legacy_name;
+		// The header frame (see Envelope) of a publication of this type, which is the same for all of them. Shared, and must not be modified
+		final byte[] publication_header;
+		final Parser<? extends GeneratedMessage> parser;
+
+		Entry(Descriptor descriptor, int type_id, int index, Parser<? extends GeneratedMessage> parser)
+		{
+			this.descriptor = descriptor;
+			this.type_id = type_id;
+			this.index = index;
+			this.parser = parser;
+			header = new byte[] { (byte) (type_id >>> 8), (byte) type_id };
+			legacy_name = descriptor.getName().getBytes(UTF8);
+			publication_header = Envelope.encode(type_id, 0, 0, Envelope.SINGLE_MESSAGE);
+		}
+	}
+
+	private HashMap<Descriptor, Entry> entries_by_descriptor;
+	private HashMap<String, Entry> entries_by_name;
+	// By simple name, as types are named in the original framing. Of types with the same simple name, the first registered one is used
+	private HashMap<String, Entry> entries_by_legacy_name;
+	private IntObjectMap<Entry> entries_by_id;
+	private ArrayList<Entry> entries_by_index;
+
+	/**
+	 * Constructs an empty registry
+	 */
+	public TypeRegistry()
+	{
+		entries_by_descriptor = new HashMap<Descriptor, Entry>();
+		entries_by_name = new HashMap<String, Entry>();
+		entries_by_legacy_name = new HashMap<String, Entry>();
+		entries_by_id = new IntObjectMap<Entry>(64);
+		entries_by_index = new ArrayList<Entry>();
+	}
+
+	/**
+	 * Constructs a registry of all the message types defined in the given .proto files, e.g. new TypeRegistry(Messages.getDescriptor())
+	 * @param files - Descriptors of the .proto files
+	 */
+	public TypeRegistry(FileDescriptor... files)
+	{
+		this();
+		for (FileDescriptor file : files)
+		{
+			register(file);
+		}
+	}
+
+	/**
+	 * Register all message types defined in a .proto file, including nested types. Their parsers are discovered from the generated classes
+	 * @param file - Descriptor of the .proto file
+	 */
+	public void register(FileDescriptor file)
+	{
+		for (Descriptor descriptor : file.getMessageTypes())
+		{
+			registerWithNested(descriptor);
+		}
+	}
+
+	/**
+	 * Register a message type with an id derived from its full name. Its parser is discovered from the generated class.
+	 * Registering a type twice has no effect.
+	 * @param descriptor - The message type
+	 * @throws IllegalStateException - If the derived id is already taken by another type
+	 * @throws IllegalArgumentException - If the generated class of the type can't be found
+	 */
+	public void register(Descriptor descriptor)
+	{
+		if (!entries_by_descriptor.containsKey(descriptor))
+		{
+			register(descriptor, hashTypeId(descriptor.getFullName()), discoverParser(descriptor));
+		}
+	}
+
+	/**
+	 * Register a message type with an explicit id. Its parser is discovered from the generated class.
+	 * The same id must be used by all services exchanging this type.
+	 * @param descriptor - The message type
+	 * @param type_id - Id between 1 and 0xFFFE
+	 * @throws IllegalStateException - If the id is already taken by another type, or the type already has another id
+	 * @throws IllegalArgumentException - If the generated class of the type can't be found
+	 */
+	public void register(Descriptor descriptor, int type_id)
+	{
+		register(descriptor, type_id, discoverParser(descriptor));
+	}
+
+	/**
+	 * Register a message type by its default instance (e.g. Entity.getDefaultInstance()), with an id derived from its full name.
+	 * This doesn't use reflection at all. Registering a type twice has no effect.
+	 * @param default_instance - Default instance of the message type
+	 * @throws IllegalStateException - If the derived id is already taken by another type
+	 */
+	public void register(GeneratedMessage default_instance)
+	{
+		Descriptor descriptor = default_instance.getDescriptorForType();
+		if (!entries_by_descriptor.containsKey(descriptor))
+		{
+			register(descriptor, hashTypeId(descriptor.getFullName()), parserOf(default_instance));
+		}
+	}
+
+	/**
+	 * Register a message type by its default instance, with an explicit id
+	 * @param default_instance - Default instance of the message type
+	 * @param type_id - Id between 1 and 0xFFFE
+	 * @throws IllegalStateException - If the id is already taken by another type, or the type already has another id
+	 */
+	public void register(GeneratedMessage default_instance, int type_id)
+	{
+		register(default_instance.getDescriptorForType(), type_id, parserOf(default_instance));
+	}
+
+	/**
+	 * Register a message type with an explicit id and parser
+	 * @param descriptor - The message type
+	 * @param type_id - Id between 1 and 0xFFFE
+	 * @param parser - Parser of the message type
+	 * @throws IllegalStateException - If the id is already taken by another type, or the type already has another id
+	 */
+	public void register(Descriptor descriptor, int type_id, Parser<? extends GeneratedMessage> parser)
+	{
+		if ((type_id < MIN_TYPE_ID) || (type_id > MAX_TYPE_ID))
+		{
+			throw new IllegalArgumentException("Type id must be between " + MIN_TYPE_ID + " and " + MAX_TYPE_ID);
+		}
+
+		Entry existing = entries_by_id.get(type_id);
+		if ((existing != null) && (existing.descriptor != descriptor))
+		{
+			throw new IllegalStateException("Type id " + type_id + " of " + descriptor.getFullName() + " is already used by "
+					+ existing.descriptor.getFullName() + ". Register one of them with an explicit id");
+		}
+
+		Entry previous = entries_by_descriptor.get(descriptor);
+		if ((previous != null) && (previous.type_id != type_id))
+		{
+			throw new IllegalStateException(descriptor.getFullName() + " is already registered with type id " + previous.type_id);
+		}
+
+		warmUp(parser);
+		
+		// Registering a type again keeps its index
+		Entry entry = new Entry(descriptor, type_id, (previous != null) ? previous.index : entries_by_index.size(), parser);
+		entries_by_descriptor.put(descriptor, entry);
+		entries_by_name.put(descriptor.getFullName(), entry);
+		Entry same_name = entries_by_legacy_name.get(descriptor.getName());
+		if ((same_name == null) || (same_name.descriptor == descriptor))
+		{
+			entries_by_legacy_name.put(descriptor.getName(), entry);
+		}
+		entries_by_id.put(type_id, entry);
+		if (previous != null)
+		{
+			entries_by_index.set(entry.index, entry);
+		}
+		else
+		{
+			entries_by_index.add(entry);
+		}
+	}
+
+	/**
+	 * @param descriptor - The message type
+	 * @return Whether the type is registered
+	 */
+	public boolean contains(Descriptor descriptor)
+	{
+		return entries_by_descriptor.containsKey(descriptor);
+	}
+
+	/**
+	 * @param descriptor - The message type
+	 * @return The type id of the message type
+	 * @throws IllegalArgumentException - If the type isn't registered
+	 */
+	public int getTypeId(Descriptor descriptor)
+	{
+		return getEntry(descriptor).type_id;
+	}
+
+	/**
+	 * @param type_id - A type id
+	 * @return The message type with this id, or null if no such type is registered
+	 */
+	public Descriptor getDescriptor(int type_id)
+	{
+		Entry entry = entries_by_id.get(type_id);
+		return (entry != null) ? entry.descriptor : null;
+	}
+
+	/**
+	 * @param descriptor - The message type
+	 * @return The parser of the message type
+	 * @throws IllegalArgumentException - If the type isn't registered
+	 */
+	public Parser<? extends GeneratedMessage> getParser(Descriptor descriptor)
+	{
+		return getEntry(descriptor).parser;
+	}
+
+	/**
+	 * @param full_name - Full name of the message type, including the .proto package (e.g. tutorial.Entity)
+	 * @return The parser of the message type, or null if no such type is registered
+	 */
+	public Parser<? extends GeneratedMessage> getParser(String full_name)
+	{
+		Entry entry = entries_by_name.get(full_name);
+		return (entry != null) ? entry.parser : null;
+	}
+
+	/**
+	 * @return The registration of a type id, or null. Lets the receiving side get the type and its parser in a single lookup
+	 */
+	Entry getEntry(int type_id)
+	{
+		return entries_by_id.get(type_id);
+	}
+
+	/**
+	 * @return The registration of the type named by a type frame of the original framing, or null
+	 */
+	Entry getEntryByLegacyName(byte[] name)
+	{
+		return entries_by_legacy_name.get(new String(name, UTF8));
+	}
+
+	/**
+	 * @return The registration of a type, which must be registered. Lets the sending side get the header and the index in a single lookup
+	 */
+	Entry getEntry(Descriptor descriptor)
+	{
+		Entry entry = entries_by_descriptor.get(descriptor);
+		if (entry == null)
+		{
+			throw new IllegalArgumentException(descriptor.getFullName() + " is not registered in the type registry");
+		}
+		return entry;
+	}
+
+	/**
+	 * @return The registration of the type with this index (see Entry.index)
+	 */
+	Entry getEntryAt(int index)
+	{
+		return entries_by_index.get(index);
+	}
+
+	/**
+	 * @return Amount of registered types
+	 */
+	int size()
+	{
+		return entries_by_index.size();
+	}
+
+	private void registerWithNested(Descriptor descriptor)
+	{
+		register(descriptor);
+		for (Descriptor nested : descriptor.getNestedTypes())
+		{
+			registerWithNested(nested);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Parser<? extends GeneratedMessage> parserOf(GeneratedMessage default_instance)
+	{
+		return (Parser<? extends GeneratedMessage>) default_instance.getParserForType();
+	}
+
+	// Finds the generated class of the type (following the java_package, java_outer_classname and java_multiple_files options the
+	// same way protoc does), and gets the parser from its default instance
+	private static Parser<? extends GeneratedMessage> discoverParser(Descriptor descriptor)
+	{
+		FileDescriptor file = descriptor.getFile();
+		String java_package = file.getOptions().hasJavaPackage() ? file.getOptions().getJavaPackage() : file.getPackage();
+		
+		// Nested types are nested classes
+		String class_name = descriptor.getName();
+		for (Descriptor parent = descriptor.getContainingType(); parent != null; parent = parent.getContainingType())
+		{
+			class_name = parent.getName() + "$" + class_name;
+		}
+		
+		if (!file.getOptions().getJavaMultipleFiles())
+		{
+			class_name = getOuterClassName(file) + "$" + class_name;
+		}
+		if (!java_package.isEmpty())
+		{
+			class_name = java_package + "." + class_name;
+		}
+		
+		try
+		{
+			Class<?> message_class = Class.forName(class_name);
+			Method default_instance_method = message_class.getMethod("getDefaultInstance");
+			return parserOf((GeneratedMessage) default_instance_method.invoke(null));
+		}
+		catch (ReflectiveOperationException ex)
+		{
+			throw new IllegalArgumentException("No generated class " + class_name + " for " + descriptor.getFullName()
+					+ ". Register the type by its default instance instead", ex);
+		}
+	}
+
+	private static String getOuterClassName(FileDescriptor file)
+	{
+		if (file.getOptions().hasJavaOuterClassname())
+		{
+			return file.getOptions().getJavaOuterClassname();
+		}
+		
+		// Derived from the file name: foo_bar.proto -> FooBar
+		String file_name = file.getName();
+		file_name = file_name.substring(file_name.lastIndexOf('/') + 1);
+		if (file_name.endsWith(".proto"))
+		{
+			file_name = file_name.substring(0, file_name.length() - ".proto".length());
+		}
+		
+		StringBuilder outer_class_name = new StringBuilder();
+		boolean capitalize_next = true;
+		for (char c : file_name.toCharArray())
+		{
+			if (!Character.isLetterOrDigit(c))
+			{
+				capitalize_next = true;
+			}
+			else
+			{
+				outer_class_name.append(capitalize_next ? Character.toUpperCase(c) : c);
+				capitalize_next = Character.isDigit(c);
+			}
+		}
+		return outer_class_name.toString();
+	}
+
+	// Parsing an empty buffer loads and initializes the classes used for parsing. Required fields fail it, which is expected
+	private static void warmUp(Parser<? extends GeneratedMessage> parser)
+	{
+		try
+		{
+			parser.parsePartialFrom(new byte[0]);
+		}
+		catch (InvalidProtocolBufferException ex) { }
+	}
+
+	// FNV-1a of the UTF-8 full name, folded to 16 bits, skipping the reserved ids
+	private static int hashTypeId(String full_name)
+	{
+		int hash = 0x811C9DC5;
+		for (byte b : full_name.getBytes(UTF8))
+		{
+			hash ^= (b & 0xFF);
+			hash *= 0x01000193;
+		}
+
+		int type_id = (hash ^ (hash >>> 16)) & 0xFFFF;
+		return Math.min(Math.max(type_id, MIN_TYPE_ID), MAX_TYPE_ID);
+	}
+}